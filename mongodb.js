@@ -7,7 +7,8 @@ db.dropDatabase();
 db.dropUser("testadmin");
 db.createUser({user:"testadmin",pwd:"password",roles:["readWrite","dbAdmin"]});
 db.createCollection("test");
-db.test.createIndex({"uid":1});
+db.test.createIndex({"uid":1},{"unique":true});
+db.test.createIndex({"timestamps.expires":1},{"name":"timestamps_expires_ttl","sparse":true,"expireAfterSeconds":0});
 db.test.insert({"comment": "This is a test document"});
 //
 // Login as the administrator for the application database
@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.MongoClientSettings;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Restricted aggregation pipeline for the "aggregate" operation. Only these
+ * stages are allowed, "$match" uses the query format of the search operation
+ * (MongoDataAccess.getQueryFromJSON()):
+ *
+ * <pre>
+ * [
+ *   { "$match": { "operator": "eq", "attribute": "data.type", "value": "..." } },
+ *   { "$group": { "_id": { "owner": "$data.owner", "category": "$data.category" },
+ *                 "count": { "$sum": 1 } } },
+ *   { "$sort": { "count": -1 } },
+ *   { "$limit": 10 },
+ *   { "$project": { "count": 1 } },
+ *   { "$count": "groups" }
+ * ]
+ * </pre>
+ *
+ * Group accumulators: $sum, $avg, $min, $max, $first, $last, $push and
+ * $addToSet. Operators that run code or write / join collections are
+ * rejected anywhere in the pipeline.
+ *
+ * The pipeline is evaluated by MongoDB for MongoDataAccess, evaluate() runs
+ * the same stages in memory for MemoryDataAccess (group keys and accumulator
+ * arguments are field paths or constants).
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class Aggregation {
+
+   static final String MATCH = "$match";
+   static final String GROUP = "$group";
+   static final String SORT = "$sort";
+   static final String LIMIT = "$limit";
+   static final String PROJECT = "$project";
+   static final String COUNT = "$count";
+   private static final String _ID = "_id";
+   private static final Set<String> STAGES = Set.of(MATCH, GROUP, SORT, LIMIT, PROJECT, COUNT);
+   private static final Set<String> ACCUMULATORS = Set.of(
+      "$sum", "$avg", "$min", "$max", "$first", "$last", "$push", "$addToSet");
+   private static final Set<String> DENIED = Set.of(
+      "$function", "$accumulator", "$where", "$out", "$merge", "$lookup", "$graphLookup", "$unionWith");
+
+   private Aggregation() {
+   }
+
+   /**
+    * Validate the JSON pipeline and convert it to stage Documents, "$match"
+    * stages are built with MongoDataAccess.getQueryFromJSON()
+    *
+    * @param json JSONArray pipeline
+    * @return List of stage Documents
+    * @throws Exception invalid or unsupported pipeline
+    */
+   static List<Document> getPipeline(final JSONArray json) throws Exception {
+      int index = 0;
+      String stage = null;
+      Object value = null;
+      JSONObject jsonStage = null;
+      List<Document> pipeline = new LinkedList<>();
+
+      if (json == null || json.isEmpty()) {
+         throw new Exception("Pipeline is empty");
+      }
+
+      for (Object o : json) {
+         index++;
+         if (!(o instanceof JSONObject) || ((JSONObject) o).size() != 1) {
+            throw new Exception("Pipeline stage " + index + " must be an object with one stage");
+         }
+
+         jsonStage = (JSONObject) o;
+         stage = jsonStage.keySet().iterator().next().toString();
+         value = jsonStage.get(stage);
+
+         if (!STAGES.contains(stage)) {
+            throw new Exception("Pipeline stage " + index + " '" + stage + "' is not supported");
+         }
+
+         switch (stage) {
+            case MATCH: {
+               if (!(value instanceof JSONObject)) {
+                  throw new Exception("Pipeline stage " + index + " '" + stage + "' requires a query object");
+               }
+               pipeline.add(new Document(MATCH, render(MongoDataAccess.getQueryFromJSON((JSONObject) value))));
+               break;
+            }
+            case LIMIT: {
+               if (!(value instanceof Number) || ((Number) value).longValue() < 1) {
+                  throw new Exception("Pipeline stage " + index + " '" + stage + "' requires a positive number");
+               }
+               pipeline.add(new Document(LIMIT, ((Number) value).intValue()));
+               break;
+            }
+            case COUNT: {
+               if (!(value instanceof String) || ((String) value).isEmpty()
+                  || ((String) value).startsWith("$") || ((String) value).contains(".")) {
+                  throw new Exception("Pipeline stage " + index + " '" + stage + "' requires a field name");
+               }
+               pipeline.add(new Document(COUNT, value));
+               break;
+            }
+            default: {
+               if (!(value instanceof JSONObject) || ((JSONObject) value).isEmpty()) {
+                  throw new Exception("Pipeline stage " + index + " '" + stage + "' requires an object");
+               }
+               validate((JSONObject) value, index);
+               if (GROUP.equals(stage)) {
+                  validateGroup((JSONObject) value, index);
+               } else if (SORT.equals(stage)) {
+                  validateSort((JSONObject) value, index);
+               }
+               pipeline.add(new Document(stage, Document.parse(((JSONObject) value).toJSONString())));
+               break;
+            }
+         }
+      }
+
+      return pipeline;
+   }
+
+   /**
+    * Render a filter as a Document
+    *
+    * @param filter Bson
+    * @return Document
+    */
+   static Document render(final Bson filter) {
+      return Document.parse(filter.toBsonDocument(BsonDocument.class,
+         MongoClientSettings.getDefaultCodecRegistry()).toJson());
+   }
+
+   /**
+    * Evaluate the pipeline in memory
+    *
+    * @param pipeline List of stage Documents from getPipeline()
+    * @param input Collection of input Documents
+    * @return List of result Documents
+    * @throws Exception unsupported expression
+    */
+   static List<Document> evaluate(final List<Document> pipeline, final Collection<Document> input) throws Exception {
+      String stage = null;
+      List<Document> docs = new ArrayList<>(input);
+      List<Document> results = null;
+
+      for (Document doc : pipeline) {
+         stage = doc.keySet().iterator().next();
+         switch (stage) {
+            case MATCH: {
+               results = new ArrayList<>();
+               for (Document d : docs) {
+                  if (MemoryCollection.matches(d, doc.get(MATCH, Document.class))) {
+                     results.add(d);
+                  }
+               }
+               docs = results;
+               break;
+            }
+            case GROUP: {
+               docs = group(docs, doc.get(GROUP, Document.class));
+               break;
+            }
+            case SORT: {
+               docs.sort(getComparator(doc.get(SORT, Document.class)));
+               break;
+            }
+            case LIMIT: {
+               docs = new ArrayList<>(docs.subList(0, Math.min(docs.size(), doc.getInteger(LIMIT))));
+               break;
+            }
+            case PROJECT: {
+               docs = project(docs, doc.get(PROJECT, Document.class));
+               break;
+            }
+            case COUNT: {
+               docs = docs.isEmpty() ? new ArrayList<>()
+                  : new ArrayList<>(List.of(new Document(doc.getString(COUNT), docs.size())));
+               break;
+            }
+            default: {
+               throw new Exception("Pipeline stage '" + stage + "' is not supported");
+            }
+         }
+      }
+
+      return docs;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private static void validate(final Object value, final int index) throws Exception {
+      if (value instanceof JSONObject) {
+         for (Object key : ((JSONObject) value).keySet()) {
+            if (DENIED.contains(key.toString())) {
+               throw new Exception("Pipeline stage " + index + " operator '" + key + "' is not allowed");
+            }
+            validate(((JSONObject) value).get(key), index);
+         }
+      } else if (value instanceof JSONArray) {
+         for (Object o : (JSONArray) value) {
+            validate(o, index);
+         }
+      }
+   }
+
+   private static void validateGroup(final JSONObject group, final int index) throws Exception {
+      Object accumulator = null;
+
+      if (!group.containsKey(_ID)) {
+         throw new Exception("Pipeline stage " + index + " '" + GROUP + "' requires '" + _ID + "'");
+      }
+
+      for (Object key : group.keySet()) {
+         if (!_ID.equals(key)) {
+            accumulator = group.get(key);
+            if (!(accumulator instanceof JSONObject) || ((JSONObject) accumulator).size() != 1
+               || !ACCUMULATORS.contains(((JSONObject) accumulator).keySet().iterator().next().toString())) {
+               throw new Exception("Pipeline stage " + index + " '" + GROUP + "' field '" + key
+                  + "' requires one of " + ACCUMULATORS);
+            }
+         }
+      }
+   }
+
+   private static void validateSort(final JSONObject sort, final int index) throws Exception {
+      Object direction = null;
+
+      for (Object key : sort.keySet()) {
+         direction = sort.get(key);
+         if (!(direction instanceof Number)
+            || Math.abs(((Number) direction).intValue()) != 1) {
+            throw new Exception("Pipeline stage " + index + " '" + SORT + "' field '" + key
+               + "' must be 1 or -1");
+         }
+      }
+   }
+
+   private static List<Document> group(final List<Document> docs, final Document spec) throws Exception {
+      Object key = null;
+      Document result = null;
+      Map<Object, Document> groups = new LinkedHashMap<>();
+      Map<Object, Map<String, Long>> counts = new LinkedHashMap<>();
+
+      for (Document doc : docs) {
+         key = getExpression(doc, spec.get(_ID));
+         result = groups.get(key);
+         if (result == null) {
+            result = new Document(_ID, key);
+            groups.put(key, result);
+            counts.put(key, new LinkedHashMap<>());
+         }
+
+         for (Map.Entry<String, Object> entry : spec.entrySet()) {
+            if (!_ID.equals(entry.getKey())) {
+               accumulate(result, counts.get(key), entry.getKey(), (Document) entry.getValue(), doc);
+            }
+         }
+      }
+
+      for (Map.Entry<Object, Document> entry : groups.entrySet()) {
+         for (Map.Entry<String, Long> count : counts.get(entry.getKey()).entrySet()) {
+            entry.getValue().put(count.getKey(), count.getValue() == 0 ? null
+               : ((Number) entry.getValue().get(count.getKey())).doubleValue() / count.getValue());
+         }
+      }
+
+      return new ArrayList<>(groups.values());
+   }
+
+   @SuppressWarnings("unchecked")
+   private static void accumulate(final Document result, final Map<String, Long> counts,
+      final String field, final Document accumulator, final Document doc) throws Exception {
+      String oper = accumulator.keySet().iterator().next();
+      Object value = getExpression(doc, accumulator.get(oper));
+      Object current = result.get(field);
+
+      switch (oper) {
+         case "$sum":
+         case "$avg": {
+            if (!result.containsKey(field)) {
+               result.put(field, 0);
+               if ("$avg".equals(oper)) {
+                  counts.put(field, 0L);
+               }
+            }
+            if (value instanceof Number) {
+               result.put(field, add((Number) result.get(field), (Number) value));
+               if ("$avg".equals(oper)) {
+                  counts.merge(field, 1L, Long::sum);
+               }
+            }
+            break;
+         }
+         case "$min":
+         case "$max": {
+            if (value != null && (current == null || ("$min".equals(oper)
+               ? compare(value, current) < 0 : compare(value, current) > 0))) {
+               result.put(field, value);
+            }
+            break;
+         }
+         case "$first": {
+            if (!result.containsKey(field)) {
+               result.put(field, value);
+            }
+            break;
+         }
+         case "$last": {
+            result.put(field, value);
+            break;
+         }
+         case "$push":
+         case "$addToSet": {
+            if (current == null) {
+               current = new ArrayList<>();
+               result.put(field, current);
+            }
+            if (value != null && ("$push".equals(oper) || !((List<Object>) current).contains(value))) {
+               ((List<Object>) current).add(value);
+            }
+            break;
+         }
+         default: {
+            throw new Exception("Accumulator '" + oper + "' is not supported");
+         }
+      }
+   }
+
+   private static Number add(final Number a, final Number b) {
+      if (a instanceof Double || b instanceof Double) {
+         return a.doubleValue() + b.doubleValue();
+      }
+      if (a instanceof Long || b instanceof Long) {
+         return a.longValue() + b.longValue();
+      }
+      return a.intValue() + b.intValue();
+   }
+
+   private static List<Document> project(final List<Document> docs, final Document spec) throws Exception {
+      boolean exclude = false;
+      Document projected = null;
+      List<Document> results = new ArrayList<>();
+
+      for (Map.Entry<String, Object> entry : spec.entrySet()) {
+         if (!_ID.equals(entry.getKey()) && isFalse(entry.getValue())) {
+            exclude = true;
+         }
+      }
+
+      for (Document doc : docs) {
+         if (exclude) {
+            projected = Document.parse(doc.toJson());
+            for (String key : spec.keySet()) {
+               projected.remove(key);
+            }
+         } else {
+            projected = new Document();
+            if (!isFalse(spec.get(_ID)) && doc.containsKey(_ID)) {
+               projected.put(_ID, doc.get(_ID));
+            }
+            for (Map.Entry<String, Object> entry : spec.entrySet()) {
+               if (entry.getValue() instanceof String) {
+                  projected.put(entry.getKey(), getExpression(doc, entry.getValue()));
+               } else if (!isFalse(entry.getValue()) && getPath(doc, entry.getKey()) != null) {
+                  projected.put(entry.getKey(), getPath(doc, entry.getKey()));
+               }
+            }
+         }
+         results.add(projected);
+      }
+
+      return results;
+   }
+
+   private static boolean isFalse(final Object value) {
+      return Boolean.FALSE.equals(value) || (value instanceof Number && ((Number) value).intValue() == 0);
+   }
+
+   private static Comparator<Document> getComparator(final Document spec) {
+      return (a, b) -> {
+         int result = 0;
+
+         for (Map.Entry<String, Object> entry : spec.entrySet()) {
+            result = compare(getPath(a, entry.getKey()), getPath(b, entry.getKey()))
+               * ((Number) entry.getValue()).intValue();
+            if (result != 0) {
+               break;
+            }
+         }
+
+         return result;
+      };
+   }
+
+   /**
+    * Compare values, null first then numbers, strings and dates (a subset of
+    * the BSON comparison order)
+    */
+   @SuppressWarnings("unchecked")
+   private static int compare(final Object a, final Object b) {
+      if (a == null || b == null) {
+         return a == null ? (b == null ? 0 : -1) : 1;
+      }
+      if (a instanceof Number && b instanceof Number) {
+         return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+      }
+      if (a instanceof Date && b instanceof Date || a instanceof String && b instanceof String) {
+         return ((Comparable<Object>) a).compareTo(b);
+      }
+      return Integer.compare(getOrder(a), getOrder(b));
+   }
+
+   private static int getOrder(final Object value) {
+      if (value instanceof Number) {
+         return 1;
+      } else if (value instanceof String) {
+         return 2;
+      } else if (value instanceof Document) {
+         return 3;
+      } else if (value instanceof List) {
+         return 4;
+      } else if (value instanceof Boolean) {
+         return 8;
+      } else if (value instanceof Date) {
+         return 9;
+      }
+      return 10;
+   }
+
+   /**
+    * Evaluate a group key, accumulator argument or projected value: "$path",
+    * a document of expressions or a constant
+    */
+   private static Object getExpression(final Document doc, final Object expression) throws Exception {
+      Document result = null;
+
+      if (expression instanceof String && ((String) expression).startsWith("$")) {
+         return getPath(doc, ((String) expression).substring(1));
+      }
+
+      if (expression instanceof Document) {
+         result = new Document();
+         for (Map.Entry<String, Object> entry : ((Document) expression).entrySet()) {
+            if (entry.getKey().startsWith("$")) {
+               throw new Exception("Expression operator '" + entry.getKey() + "' is not supported in memory");
+            }
+            result.put(entry.getKey(), getExpression(doc, entry.getValue()));
+         }
+         return result;
+      }
+
+      return expression;
+   }
+
+   private static Object getPath(final Document doc, final String path) {
+      Object node = doc;
+
+      for (String name : path.split("\\.")) {
+         if (!(node instanceof Document)) {
+            return null;
+         }
+         node = ((Document) node).get(name);
+      }
+
+      return node;
+   }
+}
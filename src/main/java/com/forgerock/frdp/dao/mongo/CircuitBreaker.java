@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for one MongoDB cluster, shared by all the MongoDataAccess
+ * instances that use the cluster.
+ *
+ * The breaker opens after "breaker.failures" consecutive calls have failed
+ * with a transient error (see RetryPolicy). While it is open, calls fail
+ * fast without waiting for server selection, and the registered probes (a
+ * "ping" on each client) run in the background every "breaker.probe.ms". The
+ * first successful probe closes the breaker. If no probe is registered, one
+ * call is let through after each probe interval.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class CircuitBreaker {
+
+   /**
+    * State of the breaker
+    */
+   public static enum STATE {
+      CLOSED, OPEN
+   }
+
+   /**
+    * Thrown instead of running a call while the breaker is open
+    */
+   public static class OpenException extends Exception {
+
+      private static final long serialVersionUID = 1L;
+
+      OpenException(final CircuitBreaker breaker) {
+         super("Circuit breaker is open for '" + breaker.getCluster() + "' since "
+            + new Date(breaker.getOpenedAt()));
+      }
+   }
+
+   private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+   private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, CircuitBreaker.class.getName());
+      thread.setDaemon(true);
+      return thread;
+   });
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final String _cluster;
+   private final int _threshold;
+   private final long _probeMillis;
+   private final AtomicInteger _failures = new AtomicInteger();
+   private final Set<Callable<?>> _probes = ConcurrentHashMap.newKeySet();
+   private volatile STATE _state = STATE.CLOSED;
+   private volatile long _openedAt = 0;
+   private volatile long _trialAt = 0;
+   private ScheduledFuture<?> _probing = null;
+
+   private CircuitBreaker(final String cluster, final int threshold, final long probeMillis) {
+      _cluster = cluster;
+      _threshold = Math.max(1, threshold);
+      _probeMillis = Math.max(10, probeMillis);
+   }
+
+   /**
+    * Get the breaker for the cluster, the first caller sets the threshold
+    * and the probe interval
+    *
+    * @param cluster String cluster identifier, "host:port"
+    * @param threshold int consecutive failures that open the breaker
+    * @param probeMillis long probe interval in milliseconds
+    * @return CircuitBreaker
+    */
+   public static CircuitBreaker getInstance(final String cluster, final int threshold, final long probeMillis) {
+      return BREAKERS.computeIfAbsent(cluster, k -> new CircuitBreaker(cluster, threshold, probeMillis));
+   }
+
+   public String getCluster() {
+      return _cluster;
+   }
+
+   public STATE getState() {
+      return _state;
+   }
+
+   /**
+    * Get the time the breaker was last opened
+    *
+    * @return long milliseconds since the epoch, 0 if it was never opened
+    */
+   public long getOpenedAt() {
+      return _openedAt;
+   }
+
+   /**
+    * Register a probe, a call that succeeds when the cluster is available
+    *
+    * @param probe Callable
+    */
+   void addProbe(final Callable<?> probe) {
+      _probes.add(probe);
+   }
+
+   /**
+    * Unregister a probe, for example when its client is closed
+    *
+    * @param probe Callable
+    */
+   void removeProbe(final Callable<?> probe) {
+      _probes.remove(probe);
+   }
+
+   /**
+    * Check if a call is allowed
+    *
+    * @return boolean false if the breaker is open
+    */
+   boolean allow() {
+      long now = 0;
+
+      if (_state == STATE.CLOSED) {
+         return true;
+      }
+
+      if (_probes.isEmpty()) {
+         now = System.currentTimeMillis();
+         synchronized (this) {
+            if (now - _trialAt >= _probeMillis) {
+               _trialAt = now; // one trial call per interval
+               return true;
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Record a successful call
+    */
+   void success() {
+      _failures.set(0);
+
+      if (_state == STATE.OPEN) {
+         this.close("call succeeded");
+      }
+   }
+
+   /**
+    * Record a call that failed with a transient error
+    */
+   void failure() {
+      if (_failures.incrementAndGet() >= _threshold && _state == STATE.CLOSED) {
+         this.open();
+      }
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private synchronized void open() {
+      if (_state == STATE.OPEN) {
+         return;
+      }
+
+      _state = STATE.OPEN;
+      _openedAt = System.currentTimeMillis();
+      _trialAt = _openedAt;
+
+      _logger.log(Level.WARNING, "Circuit breaker opened for ''{0}'' after {1} failures",
+         new Object[]{_cluster, _failures.get()});
+
+      _probing = PROBES.scheduleWithFixedDelay(this::probe, _probeMillis, _probeMillis, TimeUnit.MILLISECONDS);
+
+      return;
+   }
+
+   private synchronized void close(final String reason) {
+      if (_state == STATE.CLOSED) {
+         return;
+      }
+
+      _state = STATE.CLOSED;
+      _failures.set(0);
+
+      if (_probing != null) {
+         _probing.cancel(false);
+         _probing = null;
+      }
+
+      _logger.log(Level.INFO, "Circuit breaker closed for ''{0}'': {1}, open for {2}ms",
+         new Object[]{_cluster, reason, System.currentTimeMillis() - _openedAt});
+
+      return;
+   }
+
+   private void probe() {
+      for (Callable<?> probe : _probes) {
+         try {
+            probe.call();
+            this.close("probe succeeded");
+            return;
+         } catch (Exception ex) {
+            if (_logger.isLoggable(Level.FINE)) {
+               _logger.log(Level.FINE, "Probe failed for ''{0}'': {1}", new Object[]{_cluster, ex.getMessage()});
+            }
+         }
+      }
+   }
+}
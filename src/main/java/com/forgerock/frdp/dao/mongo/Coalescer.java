@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.dao.Operation;
+import com.forgerock.frdp.dao.OperationIF;
+import com.forgerock.frdp.utils.JSON;
+import com.forgerock.frdp.utils.STR;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Single-flight coalescing of identical READ and SEARCH operations, enabled
+ * with the "coalesce.enabled" param. The first caller (leader) runs the
+ * operation, callers with the same key that arrive while it is in flight
+ * (waiting for the connection or running) wait for its output instead of
+ * running their own. Every caller gets its own copy of the output.
+ *
+ * The key is the database, the collection, the type and the "uid" (READ) or
+ * the input JSON with sorted attributes (SEARCH). A coalesced caller can get a
+ * result that was read before a write that completed while it was waiting,
+ * do not enable it for clients that need to read their own writes. An
+ * operation with a session token ("session" param) is never coalesced.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class Coalescer {
+
+   private final Map<String, CompletableFuture<OperationIF>> _inflight = new ConcurrentHashMap<>();
+
+   /**
+    * Get the key of the operation
+    *
+    * @param operInput OperationIF input
+    * @return String key, null if the operation is not coalesced
+    */
+   static String getKey(final OperationIF operInput) {
+      StringBuilder buf = null;
+
+      if (operInput == null || operInput.getType() == null
+         || !STR.isEmpty(operInput.getParam(MongoDataAccess.PARAM_OPERATION))
+         || !STR.isEmpty(operInput.getParam(MongoDataAccess.PARAM_SESSION))) {
+         return null;
+      }
+
+      buf = new StringBuilder()
+         .append(operInput.getParam(MongoDataAccess.PARAM_DATABASE)).append('\n')
+         .append(operInput.getParam(MongoDataAccess.PARAM_COLLECTION)).append('\n')
+         .append(operInput.getType()).append('\n');
+
+      switch (operInput.getType()) {
+         case READ: {
+            return buf.append(JSON.getString(operInput.getJSON(), ConstantsIF.UID)).append('\n')
+               .append(Boolean.TRUE.equals(operInput.getJSON().get(MongoDataAccess.STREAM))).toString();
+         }
+         case SEARCH: {
+            return buf.append(getCanonicalJSON(operInput.getJSON())).toString();
+         }
+         default: {
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Run the operation, or wait for the identical operation in flight
+    *
+    * @param key String key from getKey()
+    * @param operInput OperationIF input
+    * @param function Function that runs the operation
+    * @param coalesced Consumer called with the output of a coalesced caller
+    * @return OperationIF output, the leader gets the original and the other
+    * callers a copy
+    */
+   OperationIF execute(final String key, final OperationIF operInput,
+      final Function<OperationIF, OperationIF> function, final Consumer<OperationIF> coalesced) {
+      OperationIF operOutput = null;
+      CompletableFuture<OperationIF> flight = null;
+      CompletableFuture<OperationIF> mine = new CompletableFuture<>();
+
+      flight = _inflight.putIfAbsent(key, mine);
+
+      if (flight != null) {
+         try {
+            operOutput = copy(flight.join());
+            coalesced.accept(operOutput);
+            return operOutput;
+         } catch (CompletionException ex) {
+            return function.apply(operInput); // the leader failed, run it
+         }
+      }
+
+      try {
+         operOutput = function.apply(operInput);
+         mine.complete(copy(operOutput)); // the leader's caller owns the original
+      } catch (RuntimeException ex) {
+         mine.completeExceptionally(ex);
+         throw ex;
+      } finally {
+         _inflight.remove(key, mine);
+      }
+
+      return operOutput;
+   }
+
+   /**
+    * Copy an output, the JSON is copied deep
+    *
+    * @param operOutput OperationIF output
+    * @return OperationIF copy
+    */
+   static OperationIF copy(final OperationIF operOutput) {
+      OperationIF copy = null;
+
+      if (operOutput == null) {
+         return null;
+      }
+
+      copy = new Operation(operOutput.getType());
+      copy.setError(operOutput.isError());
+      copy.setState(operOutput.getState());
+      copy.setStatus(operOutput.getStatus());
+      if (operOutput.getParam(MongoDataAccess.PARAM_OUTCOME) != null) {
+         copy.setParam(MongoDataAccess.PARAM_OUTCOME, operOutput.getParam(MongoDataAccess.PARAM_OUTCOME));
+      }
+      copy.setJSON((JSONObject) copyJSON(operOutput.getJSON()));
+
+      return copy;
+   }
+
+   /**
+    * Get the JSON text of the value with the attributes of every object in
+    * name order, equal values have equal text
+    *
+    * @param value Object JSON value
+    * @return String canonical JSON
+    */
+   static String getCanonicalJSON(final Object value) {
+      StringBuilder buf = new StringBuilder();
+
+      appendCanonical(buf, value);
+
+      return buf.toString();
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private static void appendCanonical(final StringBuilder buf, final Object value) {
+      boolean first = true;
+
+      if (value instanceof Map) {
+         buf.append('{');
+         for (Map.Entry<?, ?> entry : new TreeMap<>((Map<?, ?>) value).entrySet()) {
+            if (!first) {
+               buf.append(',');
+            }
+            first = false;
+            buf.append('"').append(JSONValue.escape(String.valueOf(entry.getKey()))).append("\":");
+            appendCanonical(buf, entry.getValue());
+         }
+         buf.append('}');
+      } else if (value instanceof List) {
+         buf.append('[');
+         for (Object item : (List<?>) value) {
+            if (!first) {
+               buf.append(',');
+            }
+            first = false;
+            appendCanonical(buf, item);
+         }
+         buf.append(']');
+      } else if (value instanceof Number) {
+         buf.append(((Number) value).doubleValue() == ((Number) value).longValue()
+            ? Long.toString(((Number) value).longValue()) : value.toString());
+      } else {
+         buf.append(JSONValue.toJSONString(value));
+      }
+
+      return;
+   }
+
+   /**
+    * Copy a JSON value, objects and arrays are copied deep
+    *
+    * @param value Object JSON value
+    * @return Object copy
+    */
+   static Object copyJSON(final Object value) {
+      JSONObject object = null;
+      JSONArray array = null;
+
+      if (value instanceof Map) {
+         object = new JSONObject();
+         for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            object.put(entry.getKey(), copyJSON(entry.getValue()));
+         }
+         return object;
+      } else if (value instanceof List) {
+         array = new JSONArray();
+         for (Object item : (List<?>) value) {
+            array.add(copyJSON(item));
+         }
+         return array;
+      }
+
+      return value; // String, Number, Boolean and null are immutable
+   }
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WriteModel;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Bulk export and import of a collection as NDJSON, one document per line in
+ * MongoDB Extended JSON (canonical mode, so dates, ObjectIds and Longs keep
+ * their type). A file name ending with ".gz" is gzip compressed.
+ *
+ * <pre>
+ * CollectionTransfer transfer = new CollectionTransfer(dao, "uma-cs", "content");
+ * transfer.exportTo(query, Paths.get("content.ndjson.gz"), false);
+ * transfer.setParallelism(4);
+ * transfer.importFrom(Paths.get("content.ndjson.gz"), false);
+ * </pre>
+ *
+ * Export reads the documents in "_id" order from a cursor, "batchSize"
+ * documents at a time, so memory is bounded whatever the size of the
+ * collection. The optional query uses the same JSON as SEARCH.
+ *
+ * Import reads "batchSize" lines at a time and writes each batch with an
+ * unordered bulk write: insert (documents that already exist are skipped) or
+ * upsert by "_id" (replace). Up to "parallelism" batches are written at the
+ * same time, the reader waits when they are all busy.
+ *
+ * A partitioned collection (see Partitioning) is exported one partition
+ * after the other, import writes each document to the partition of its
+ * "uid". Neither runs while the collection is rebalanced.
+ *
+ * The file has the whole "data" of a spilled document (see PayloadSpill),
+ * without its "spill" reference. Import spills a "data" that is larger than
+ * "spill.threshold.bytes" again.
+ *
+ * Both write a checkpoint file (the file name with ".checkpoint") every
+ * "checkpointInterval" documents and log the progress and the throughput.
+ * Running again with resume = true continues from the checkpoint, the
+ * checkpoint is removed when the transfer completes. Both return a summary:
+ *
+ * <pre>
+ * {
+ *   "documents": 250000,
+ *   "skipped": 12,
+ *   "bytes": 81234567,
+ *   "millis": 9120,
+ *   "rate": 27412
+ * }
+ * </pre>
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class CollectionTransfer {
+
+   public static final String DOCUMENTS = "documents";
+   public static final String SKIPPED = "skipped";
+   public static final String BYTES = "bytes";
+   public static final String MILLIS = "millis";
+   public static final String RATE = "rate";
+   public static final String SUFFIX_GZIP = ".gz";
+   public static final String SUFFIX_CHECKPOINT = ".checkpoint";
+   private static final String LINES = "lines";
+   private static final String OFFSET = "offset";
+   private static final String PARTITION = "partition";
+   private static final String LAST_ID = "lastId";
+   private static final String _ID = "_id";
+   private static final JsonWriterSettings JSON_SETTINGS
+      = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final MongoDataAccess _dao;
+   private final String _database;
+   private final String _collection;
+   private int _batchSize = 1000;
+   private int _parallelism = 1;
+   private int _checkpointInterval = 10000;
+   private boolean _upsert = false;
+
+   /**
+    * Create a transfer for a collection
+    *
+    * @param dao MongoDataAccess with the connection params
+    * @param database String database name
+    * @param collection String collection name
+    */
+   public CollectionTransfer(final MongoDataAccess dao, final String database, final String collection) {
+      _dao = dao;
+      _database = database;
+      _collection = collection;
+   }
+
+   /**
+    * Documents per cursor batch (export) and per bulk write (import), default
+    * 1000
+    *
+    * @param batchSize int
+    */
+   public void setBatchSize(final int batchSize) {
+      _batchSize = Math.max(1, batchSize);
+   }
+
+   /**
+    * Bulk writes running at the same time during import, default 1
+    *
+    * @param parallelism int
+    */
+   public void setParallelism(final int parallelism) {
+      _parallelism = Math.max(1, parallelism);
+   }
+
+   /**
+    * Documents between checkpoints, default 10000
+    *
+    * @param checkpointInterval int
+    */
+   public void setCheckpointInterval(final int checkpointInterval) {
+      _checkpointInterval = Math.max(1, checkpointInterval);
+   }
+
+   /**
+    * Import with upserts (replace by "_id") instead of inserts, default false
+    *
+    * @param upsert boolean
+    */
+   public void setUpsert(final boolean upsert) {
+      _upsert = upsert;
+   }
+
+   /**
+    * Export the documents that match the query (all if null) to the file.
+    *
+    * Each checkpoint ends a gzip member, so the file can be truncated at the
+    * checkpoint offset when the export is resumed: a gzip file with several
+    * members is read as one stream.
+    *
+    * @param query JSONObject SEARCH query, null for all documents
+    * @param file Path output file, ".gz" for gzip
+    * @param resume boolean continue from the checkpoint if there is one
+    * @return JSONObject summary
+    * @throws Exception
+    */
+   public JSONObject exportTo(final JSONObject query, final Path file, final boolean resume) throws Exception {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      boolean gzip = isGzip(file);
+      int partition = 0;
+      long documents = 0;
+      long bytes = 0;
+      long pending = 0;
+      long start = System.currentTimeMillis();
+      byte[] line = null;
+      Object lastId = null;
+      Path checkpoint = getCheckpoint(file);
+      JSONObject jsonCheckpoint = null;
+      List<Bson> filters = new ArrayList<>();
+      List<MongoCollection<Document>> collections = null;
+      MongoCursor<Document> cursor = null;
+      Document doc = null;
+      Document data = null;
+      FileChannel channel = null;
+      OutputStream out = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      collections = _dao.getBulkCollections(_database, _collection);
+
+      filters.add(query == null ? new Document() : MongoDataAccess.getQueryFromJSON(query));
+      filters.add(Timestamps.getNotExpiredFilter());
+
+      jsonCheckpoint = resume ? readCheckpoint(checkpoint) : null;
+
+      if (jsonCheckpoint != null) {
+         documents = ((Number) jsonCheckpoint.get(DOCUMENTS)).longValue();
+         bytes = ((Number) jsonCheckpoint.get(OFFSET)).longValue();
+         lastId = Document.parse((String) jsonCheckpoint.get(LAST_ID)).get(_ID);
+         partition = jsonCheckpoint.get(PARTITION) == null ? 0 : ((Number) jsonCheckpoint.get(PARTITION)).intValue();
+         if (partition >= collections.size()) {
+            throw new Exception("Checkpoint partition " + partition + " does not exist, the collection has "
+               + collections.size() + " partition(s)");
+         }
+
+         channel = FileChannel.open(file, StandardOpenOption.WRITE);
+         channel.truncate(bytes);
+         channel.position(bytes);
+
+         _logger.log(Level.INFO, "{0}: resume ''{1}'' after {2} documents",
+            new Object[]{METHOD, file, documents});
+      } else {
+         channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      }
+
+      try {
+         out = openSegment(channel, gzip);
+
+         for (; partition < collections.size(); partition++) {
+            cursor = collections.get(partition)
+               .find(Filters.and(lastId == null ? filters : withLastId(filters, lastId)))
+               .sort(Sorts.ascending(_ID))
+               .batchSize(_batchSize)
+               .iterator();
+
+            try {
+               while (cursor.hasNext()) {
+                  doc = cursor.next();
+                  data = _dao.getSpilledData(_database, _collection, doc);
+                  if (data != null) {
+                     doc.put(ConstantsIF.DATA, data);
+                     doc.remove(PayloadSpill.SPILL);
+                  }
+                  line = (doc.toJson(JSON_SETTINGS) + "\n").getBytes(StandardCharsets.UTF_8);
+                  out.write(line);
+                  lastId = doc.get(_ID);
+                  documents++;
+                  pending++;
+
+                  if (pending >= _checkpointInterval) {
+                     out.close(); // ends the gzip member, the channel stays open
+                     bytes = channel.position();
+                     writeCheckpoint(checkpoint, documents, 0, bytes, partition, lastId);
+                     this.progress(METHOD, documents, 0, bytes, start);
+                     out = openSegment(channel, gzip);
+                     pending = 0;
+                  }
+               }
+            } finally {
+               cursor.close();
+            }
+
+            lastId = null; // the next partition is read from its start
+         }
+
+         out.close();
+         bytes = channel.position();
+      } finally {
+         channel.close();
+      }
+
+      Files.deleteIfExists(checkpoint);
+
+      _logger.exiting(CLASS, METHOD);
+
+      return this.progress(METHOD, documents, 0, bytes, start);
+   }
+
+   /**
+    * Import the documents of the file.
+    *
+    * The checkpoint is the number of lines of the file that have been written,
+    * the batches can complete in any order so it only advances over the
+    * batches that have all completed. After a resume, documents between the
+    * checkpoint and the failure are written again: inserts skip them, upserts
+    * replace them.
+    *
+    * @param file Path input file, ".gz" for gzip
+    * @param resume boolean continue from the checkpoint if there is one
+    * @return JSONObject summary
+    * @throws Exception
+    */
+   public JSONObject importFrom(final Path file, final boolean resume) throws Exception {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      long lines = 0;
+      long documents = 0;
+      long skipped = 0;
+      long bytes = 0;
+      long done = 0;
+      long checkpointAt = 0;
+      long start = System.currentTimeMillis();
+      String line = null;
+      Path checkpoint = getCheckpoint(file);
+      JSONObject jsonCheckpoint = null;
+      Map<String, MongoCollection<Document>> collections = new HashMap<>();
+      List<Document> batch = null;
+      Deque<Future<long[]>> running = new ArrayDeque<>();
+      Deque<Long> ends = new ArrayDeque<>();
+      long[] counts = null;
+      ExecutorService executor = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      for (MongoCollection<Document> collection : _dao.getBulkCollections(_database, _collection)) {
+         collections.put(collection.getNamespace().getFullName(), collection);
+      }
+
+      jsonCheckpoint = resume ? readCheckpoint(checkpoint) : null;
+
+      if (jsonCheckpoint != null) {
+         done = ((Number) jsonCheckpoint.get(LINES)).longValue();
+         documents = ((Number) jsonCheckpoint.get(DOCUMENTS)).longValue();
+         skipped = ((Number) jsonCheckpoint.get(SKIPPED)).longValue();
+
+         _logger.log(Level.INFO, "{0}: resume ''{1}'' after {2} lines",
+            new Object[]{METHOD, file, done});
+      }
+
+      checkpointAt = done + _checkpointInterval;
+
+      executor = Executors.newFixedThreadPool(_parallelism, runnable -> {
+         Thread thread = new Thread(runnable, CLASS + ":" + METHOD);
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+         openInput(file), StandardCharsets.UTF_8))) {
+         batch = new ArrayList<>(_batchSize);
+
+         while ((line = reader.readLine()) != null) {
+            lines++;
+            bytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+
+            if (lines <= done || line.trim().isEmpty()) {
+               continue;
+            }
+
+            batch.add(Document.parse(line));
+
+            if (batch.size() >= _batchSize) {
+               this.submit(executor, collections, batch, running, ends, lines);
+               batch = new ArrayList<>(_batchSize);
+            }
+
+            /*
+             * bounded: wait for the oldest batch when all the writers are busy
+             */
+            while (running.size() >= _parallelism
+               || (!running.isEmpty() && running.peekFirst().isDone())) {
+               counts = running.removeFirst().get();
+               documents += counts[0];
+               skipped += counts[1];
+               done = ends.removeFirst();
+            }
+
+            if (done >= checkpointAt) {
+               writeCheckpoint(checkpoint, documents, skipped, done, 0, null);
+               this.progress(METHOD, documents, skipped, bytes, start);
+               checkpointAt = done + _checkpointInterval;
+            }
+         }
+
+         if (!batch.isEmpty()) {
+            this.submit(executor, collections, batch, running, ends, lines);
+         }
+
+         while (!running.isEmpty()) {
+            counts = running.removeFirst().get();
+            documents += counts[0];
+            skipped += counts[1];
+            done = ends.removeFirst();
+         }
+      } catch (Exception ex) {
+         if (done > 0) {
+            writeCheckpoint(checkpoint, documents, skipped, done, 0, null);
+         }
+         throw ex;
+      } finally {
+         executor.shutdownNow();
+      }
+
+      Files.deleteIfExists(checkpoint);
+
+      _logger.exiting(CLASS, METHOD);
+
+      return this.progress(METHOD, documents, skipped, bytes, start);
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private void submit(final ExecutorService executor, final Map<String, MongoCollection<Document>> collections,
+      final List<Document> batch, final Deque<Future<long[]>> running, final Deque<Long> ends, final long end) {
+      running.addLast(executor.submit(() -> this.write(collections, batch)));
+      ends.addLast(end);
+   }
+
+   /**
+    * Write one batch, one bulk write per partition (see Partitioning)
+    *
+    * @return long[] documents written [0] and skipped [1]
+    */
+   private long[] write(final Map<String, MongoCollection<Document>> collections,
+      final List<Document> batch) throws Exception {
+      String[] owner = null;
+      long[] counts = null;
+      long[] total = new long[2];
+      Map<String, List<Document>> partitions = new LinkedHashMap<>();
+
+      for (Document doc : batch) {
+         if (collections.size() > 1 && doc.get(ConstantsIF.UID) == null) {
+            throw new Exception("Document without '" + ConstantsIF.UID
+               + "' can not be imported in a partitioned collection: " + doc.get(_ID));
+         }
+         owner = _dao.getOwner(_database, _collection,
+            doc.get(ConstantsIF.UID) == null ? null : doc.get(ConstantsIF.UID).toString());
+         partitions.computeIfAbsent(owner[0] + "." + owner[1], k -> new ArrayList<>()).add(doc);
+      }
+
+      for (Map.Entry<String, List<Document>> entry : partitions.entrySet()) {
+         counts = this.write(collections.get(entry.getKey()), entry.getValue());
+         total[0] += counts[0];
+         total[1] += counts[1];
+      }
+
+      return total;
+   }
+
+   /**
+    * Write the documents of one partition, retried on transient errors: an
+    * insert that is written twice is skipped as a duplicate and an upsert is
+    * idempotent. A large "data" is spilled before the write, the file of a
+    * skipped or failed document is deleted.
+    *
+    * @return long[] documents written [0] and skipped [1]
+    */
+   private long[] write(final MongoCollection<Document> collection, final List<Document> batch) throws Exception {
+      List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+      Document[] spilled = new Document[batch.size()];
+      BulkWriteResult result = null;
+      NegativeCache cache = _dao.getNegativeCache(_database, _collection);
+      Document doc = null;
+      long skipped = 0;
+
+      for (int i = 0; i < batch.size(); i++) {
+         doc = batch.get(i);
+         spilled[i] = _dao.spillData(_database, _collection, doc);
+         if (cache != null && doc.get(ConstantsIF.UID) != null) {
+            cache.add(doc.get(ConstantsIF.UID).toString()); // before the write, see NegativeCache
+         }
+         if (!_upsert) {
+            models.add(new InsertOneModel<>(doc));
+         } else if (doc.containsKey(_ID)) {
+            models.add(new ReplaceOneModel<>(Filters.eq(_ID, doc.get(_ID)), doc,
+               new ReplaceOptions().upsert(true)));
+         } else {
+            models.add(new ReplaceOneModel<>(Filters.eq(ConstantsIF.UID, doc.get(ConstantsIF.UID)), doc,
+               new ReplaceOptions().upsert(true)));
+         }
+      }
+
+      try {
+         result = _dao.call(false, () -> collection.bulkWrite(models, new BulkWriteOptions().ordered(false)));
+      } catch (MongoBulkWriteException ex) {
+         for (BulkWriteError error : ex.getWriteErrors()) {
+            _dao.deleteSpill(_database, _collection, spilled[error.getIndex()]); // not written
+         }
+         for (BulkWriteError error : ex.getWriteErrors()) {
+            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY || _upsert) {
+               throw ex;
+            }
+            skipped++;
+         }
+         result = ex.getWriteResult();
+      } finally {
+         if (_dao.getSearchCache(_database, _collection) != null) {
+            _dao.getSearchCache(_database, _collection).invalidate();
+         }
+      }
+
+      return new long[]{
+         _upsert ? result.getMatchedCount() + result.getUpserts().size() : result.getInsertedCount(),
+         skipped
+      };
+   }
+
+   /**
+    * The filters of a resumed export, after the last "_id" of the checkpoint
+    */
+   private static List<Bson> withLastId(final List<Bson> filters, final Object lastId) {
+      List<Bson> resumed = new ArrayList<>(filters);
+
+      resumed.add(Filters.gt(_ID, lastId));
+
+      return resumed;
+   }
+
+   private JSONObject progress(final String method, final long documents, final long skipped,
+      final long bytes, final long start) {
+      long millis = Math.max(1, System.currentTimeMillis() - start);
+      JSONObject json = new JSONObject();
+
+      json.put(DOCUMENTS, documents);
+      json.put(SKIPPED, skipped);
+      json.put(BYTES, bytes);
+      json.put(MILLIS, millis);
+      json.put(RATE, documents * 1000L / millis);
+
+      _logger.log(Level.INFO, "{0}: {1}.{2}: {3} documents, {4} skipped, {5} bytes, {6} documents/s",
+         new Object[]{method, _database, _collection, documents, skipped, bytes, json.get(RATE)});
+
+      return json;
+   }
+
+   private static boolean isGzip(final Path file) {
+      return file.getFileName().toString().endsWith(SUFFIX_GZIP);
+   }
+
+   private static Path getCheckpoint(final Path file) {
+      return file.resolveSibling(file.getFileName().toString() + SUFFIX_CHECKPOINT);
+   }
+
+   private static InputStream openInput(final Path file) throws IOException {
+      InputStream in = Files.newInputStream(file);
+
+      return isGzip(file) ? new GZIPInputStream(in, 65536) : in;
+   }
+
+   /**
+    * Open a segment of the output file, closing it does not close the channel
+    */
+   private static OutputStream openSegment(final FileChannel channel, final boolean gzip) throws IOException {
+      OutputStream out = new FilterOutputStream(Channels.newOutputStream(channel)) {
+         @Override
+         public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+         }
+
+         @Override
+         public void close() throws IOException {
+            out.flush();
+         }
+      };
+
+      return gzip ? new GZIPOutputStream(out, 65536) : new BufferedOutputStream(out, 65536);
+   }
+
+   private static JSONObject readCheckpoint(final Path checkpoint) throws Exception {
+      if (!Files.exists(checkpoint)) {
+         return null;
+      }
+
+      return (JSONObject) new JSONParser().parse(
+         new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8));
+   }
+
+   /**
+    * Write the checkpoint to a temporary file and move it, a failure never
+    * leaves a partial checkpoint
+    */
+   private static void writeCheckpoint(final Path checkpoint, final long documents, final long skipped,
+      final long position, final int partition, final Object lastId) throws IOException {
+      Path temp = checkpoint.resolveSibling(checkpoint.getFileName().toString() + ".tmp");
+      JSONObject json = new JSONObject();
+
+      json.put(DOCUMENTS, documents);
+      if (lastId == null) {
+         json.put(SKIPPED, skipped);
+         json.put(LINES, position);
+      } else {
+         json.put(OFFSET, position);
+         json.put(PARTITION, partition);
+         json.put(LAST_ID, new Document(_ID, lastId).toJson(JSON_SETTINGS));
+      }
+
+      Files.write(temp, json.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the MongoDB driver connection pool events: pool size, connections
+ * checked out and the time spent waiting for a connection. Registered on the
+ * client by MongoDataAccess.init(). The counters are the sum over all the
+ * server pools of the client.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class ConnectionPoolMetrics implements ConnectionPoolListener, ConnectionPoolMetricsMBean {
+
+   private final AtomicInteger _poolSize = new AtomicInteger();
+   private final AtomicInteger _poolMaxSize = new AtomicInteger();
+   private final AtomicInteger _checkedOut = new AtomicInteger();
+   private final AtomicInteger _waitQueueSize = new AtomicInteger();
+   private final LongAdder _checkedOutCount = new LongAdder();
+   private final Histogram _waitTime = new Histogram();
+   private final ThreadLocal<Long> _waitStart = new ThreadLocal<>();
+
+   @Override
+   public void connectionPoolOpened(final ConnectionPoolOpenedEvent event) {
+      _poolMaxSize.addAndGet(event.getSettings().getMaxSize());
+   }
+
+   @Override
+   public void connectionPoolClosed(final ConnectionPoolClosedEvent event) {
+      return;
+   }
+
+   @Override
+   public void connectionCheckedOut(final ConnectionCheckedOutEvent event) {
+      _checkedOut.incrementAndGet();
+      _checkedOutCount.increment();
+   }
+
+   @Override
+   public void connectionCheckedIn(final ConnectionCheckedInEvent event) {
+      _checkedOut.decrementAndGet();
+   }
+
+   /**
+    * The wait queue events are fired on the thread that requests the
+    * connection, the wait time is tracked per thread
+    */
+   @Override
+   @SuppressWarnings("deprecation") // the only wait events driver 3.12 fires
+   public void waitQueueEntered(final ConnectionPoolWaitQueueEnteredEvent event) {
+      _waitQueueSize.incrementAndGet();
+      _waitStart.set(System.nanoTime());
+   }
+
+   @Override
+   @SuppressWarnings("deprecation") // the only wait events driver 3.12 fires
+   public void waitQueueExited(final ConnectionPoolWaitQueueExitedEvent event) {
+      Long start = _waitStart.get();
+
+      _waitQueueSize.decrementAndGet();
+
+      if (start != null) {
+         _waitTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+         _waitStart.remove();
+      }
+   }
+
+   @Override
+   public void connectionAdded(final ConnectionAddedEvent event) {
+      _poolSize.incrementAndGet();
+   }
+
+   @Override
+   public void connectionRemoved(final ConnectionRemovedEvent event) {
+      _poolSize.decrementAndGet();
+   }
+
+   @Override
+   public int getPoolSize() {
+      return _poolSize.get();
+   }
+
+   @Override
+   public int getPoolMaxSize() {
+      return _poolMaxSize.get();
+   }
+
+   @Override
+   public int getCheckedOut() {
+      return _checkedOut.get();
+   }
+
+   @Override
+   public long getCheckedOutCount() {
+      return _checkedOutCount.sum();
+   }
+
+   @Override
+   public int getWaitQueueSize() {
+      return _waitQueueSize.get();
+   }
+
+   @Override
+   public double getWaitTimeMean() {
+      return _waitTime.getMean();
+   }
+
+   @Override
+   public long getWaitTimeMax() {
+      return _waitTime.getMax();
+   }
+
+   @Override
+   public long getWaitTimeP99() {
+      return _waitTime.getValueAtPercentile(99.0);
+   }
+}
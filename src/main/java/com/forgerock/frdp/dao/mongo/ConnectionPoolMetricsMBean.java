@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+/**
+ * JMX interface for the MongoDB driver connection pool metrics. Wait times
+ * are in microseconds.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public interface ConnectionPoolMetricsMBean {
+
+   int getPoolSize();
+
+   int getPoolMaxSize();
+
+   int getCheckedOut();
+
+   long getCheckedOutCount();
+
+   int getWaitQueueSize();
+
+   double getWaitTimeMean();
+
+   long getWaitTimeMax();
+
+   long getWaitTimeP99();
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics for a MongoDataAccess instance: one OperationMetrics per operation
+ * type and collection, plus the driver ConnectionPoolMetrics and WireMetrics.
+ *
+ * When JMX is enabled each OperationMetrics is registered as an MBean when it
+ * is first used:
+ *
+ * <pre>
+ * com.forgerock.frdp.dao.mongo:type=Operation,name=...,operation=READ,collection=...
+ * com.forgerock.frdp.dao.mongo:type=ConnectionPool,name=...
+ * </pre>
+ *
+ * Other metrics systems can bind with addListener(), see
+ * MicrometerMetricsBinder.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class DataAccessMetrics {
+
+   public static final String JMX_DOMAIN = "com.forgerock.frdp.dao.mongo";
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final String _name;
+   private final boolean _jmx;
+   private final Map<String, OperationMetrics> _operations = new ConcurrentHashMap<>();
+   private final List<ObjectName> _registered = new CopyOnWriteArrayList<>();
+   private final List<Consumer<OperationMetrics>> _listeners = new CopyOnWriteArrayList<>();
+   private final ConnectionPoolMetrics _pool = new ConnectionPoolMetrics();
+   private final WireMetrics _wire = new WireMetrics();
+
+   /**
+    * Create metrics
+    *
+    * @param name String name of the instance, used in the JMX ObjectName
+    * @param jmx boolean register the metrics as JMX MBeans
+    */
+   public DataAccessMetrics(final String name, final boolean jmx) {
+      _name = name;
+      _jmx = jmx;
+
+      if (_jmx) {
+         this.register(this.getObjectName("ConnectionPool", null, null), _pool);
+      }
+   }
+
+   /**
+    * Get the metrics for an operation type and collection, create them if
+    * they do not exist
+    *
+    * @param operation String operation type
+    * @param collection String collection name
+    * @return OperationMetrics
+    */
+   public OperationMetrics getOperationMetrics(final String operation, final String collection) {
+      String key = operation + "/" + collection;
+      OperationMetrics metrics = _operations.get(key);
+
+      if (metrics == null) {
+         synchronized (this) {
+            metrics = _operations.get(key);
+            if (metrics == null) {
+               metrics = new OperationMetrics(operation, collection);
+               _operations.put(key, metrics);
+               this.bind(metrics);
+            }
+         }
+      }
+
+      return metrics;
+   }
+
+   /**
+    * Get all the operation metrics
+    *
+    * @return Collection of OperationMetrics
+    */
+   public Collection<OperationMetrics> getOperationMetrics() {
+      return _operations.values();
+   }
+
+   /**
+    * Get the connection pool metrics
+    *
+    * @return ConnectionPoolMetrics
+    */
+   public ConnectionPoolMetrics getConnectionPoolMetrics() {
+      return _pool;
+   }
+
+   /**
+    * Get the bytes sent to and received from the server
+    *
+    * @return WireMetrics
+    */
+   public WireMetrics getWireMetrics() {
+      return _wire;
+   }
+
+   /**
+    * Add a listener that is called for every existing and every new
+    * OperationMetrics
+    *
+    * @param listener Consumer of OperationMetrics
+    */
+   public synchronized void addListener(final Consumer<OperationMetrics> listener) {
+      _listeners.add(listener);
+      for (OperationMetrics metrics : _operations.values()) {
+         listener.accept(metrics);
+      }
+   }
+
+   /**
+    * Unregister all the JMX MBeans
+    */
+   public synchronized void close() {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      for (ObjectName name : _registered) {
+         try {
+            server.unregisterMBean(name);
+         } catch (Exception ex) {
+            _logger.log(Level.WARNING, "Can not unregister MBean: " + name + ": " + ex.getMessage());
+         }
+      }
+      _registered.clear();
+      _listeners.clear();
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private void bind(final OperationMetrics metrics) {
+      if (_jmx) {
+         this.register(this.getObjectName("Operation", metrics.getOperation(), metrics.getCollection()), metrics);
+      }
+      for (Consumer<OperationMetrics> listener : _listeners) {
+         listener.accept(metrics);
+      }
+   }
+
+   private void register(final ObjectName name, final Object mbean) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      if (name == null) {
+         return;
+      }
+
+      try {
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(mbean, name);
+         _registered.add(name);
+      } catch (Exception ex) {
+         _logger.log(Level.WARNING, "Can not register MBean: " + name + ": " + ex.getMessage());
+      }
+
+      return;
+   }
+
+   private ObjectName getObjectName(final String type, final String operation, final String collection) {
+      StringBuilder buf = new StringBuilder(JMX_DOMAIN);
+
+      buf.append(":type=").append(type).append(",name=").append(ObjectName.quote(_name));
+
+      if (operation != null) {
+         buf.append(",operation=").append(operation)
+            .append(",collection=").append(ObjectName.quote(collection));
+      }
+
+      try {
+         return new ObjectName(buf.toString());
+      } catch (Exception ex) {
+         _logger.log(Level.WARNING, "Invalid MBean name: " + buf.toString() + ": " + ex.getMessage());
+         return null;
+      }
+   }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Write-behind group commit for CREATE, enabled with the "create.buffered"
+ * param. Documents are queued per collection and a writer thread inserts them
+ * with one unordered insertMany when "create.batch.size" documents are queued
+ * or "create.batch.ms" milliseconds after the first one, whichever comes
+ * first. The future of each document completes when its insert is
+ * acknowledged, with the session token of the batch ("sessions.enabled",
+ * see SessionToken), or with the write error of that document if it failed.
+ *
+ * A full queue blocks the caller (backpressure) for up to
+ * "create.queue.timeout.ms", then the create fails. close() stops new
+ * creates, writes everything that is queued and then returns, an
+ * acknowledged create is never lost.
+ *
+ * A create that has to run again (see MongoDataAccess.createAsync()) runs on
+ * the retry thread of the group commit: it blocks, it must not hold up the
+ * writer of its collection or take a thread of the common pool.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class GroupCommit {
+
+   private static final long IDLE_MILLIS = 100;
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+   private final MongoDataAccess _dao;
+   private final int _batchSize;
+   private final long _batchMillis;
+   private final int _queueSize;
+   private final long _offerMillis;
+   private final Map<String, Writer> _writers = new ConcurrentHashMap<>();
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+   private volatile boolean _closed = false;
+   private ExecutorService _retries = null;
+
+   /**
+    * Create the group commit
+    *
+    * @param dao MongoDataAccess, runs the inserts with its retry policy
+    * @param batchSize int maximum documents per insertMany
+    * @param batchMillis long maximum time a document waits for its batch
+    * @param queueSize int maximum documents queued per collection
+    * @param offerMillis long maximum time a caller waits for a full queue
+    */
+   GroupCommit(final MongoDataAccess dao, final int batchSize, final long batchMillis,
+      final int queueSize, final long offerMillis) {
+      _dao = dao;
+      _batchSize = Math.max(1, batchSize);
+      _batchMillis = Math.max(0, batchMillis);
+      _queueSize = Math.max(_batchSize, queueSize);
+      _offerMillis = Math.max(0, offerMillis);
+   }
+
+   /**
+    * Queue a document for insert
+    *
+    * @param database String database name
+    * @param collection String collection name
+    * @param doc Document to insert
+    * @param wire WireMetrics.Scope gets the share of the document in the
+    * bytes of its batch, can be null
+    * @return CompletableFuture completes with the session token (null if
+    * sessions are not enabled) when the insert is acknowledged, exceptionally
+    * with a MongoWriteException if the document was not written
+    * @throws Exception closed, or the queue is still full after the timeout
+    */
+   CompletableFuture<String> submit(final String database, final String collection, final Document doc,
+      final WireMetrics.Scope wire) throws Exception {
+      Writer writer = null;
+      Entry entry = new Entry(doc, wire);
+
+      writer = _writers.get(database + "." + collection);
+      if (writer == null) {
+         writer = this.getWriter(database, collection);
+      }
+
+      /*
+       * close() can not start while a document is being queued, a writer only
+       * stops when it is closed and its queue is empty
+       */
+      _lock.readLock().lock();
+      try {
+         if (_closed) {
+            throw new Exception("Buffered create is closed");
+         }
+         if (!writer._queue.offer(entry, _offerMillis, TimeUnit.MILLISECONDS)) {
+            throw new Exception("Buffered create queue is full for '" + database + "." + collection + "'");
+         }
+      } finally {
+         _lock.readLock().unlock();
+      }
+
+      return entry._future;
+   }
+
+   /**
+    * Run a create again, on the retry thread
+    *
+    * @param create Supplier runs the create, blocks
+    * @return CompletableFuture completes with the output of the create
+    */
+   synchronized <T> CompletableFuture<T> retry(final Supplier<T> create) {
+      if (_retries == null) {
+         _retries = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, CLASS + ":retry");
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+
+      return CompletableFuture.supplyAsync(create, _retries);
+   }
+
+   /**
+    * Stop accepting documents, write the queued ones and wait for the creates
+    * that run again
+    *
+    * @param timeoutMillis long maximum time to wait for each writer
+    */
+   void close(final long timeoutMillis) {
+      ExecutorService retries = null;
+
+      _lock.writeLock().lock();
+      try {
+         _closed = true;
+      } finally {
+         _lock.writeLock().unlock();
+      }
+
+      for (Writer writer : _writers.values()) {
+         try {
+            writer.join(timeoutMillis);
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         if (writer.isAlive() || !writer._queue.isEmpty()) {
+            _logger.log(Level.SEVERE, "Buffered creates not written for ''{0}'': {1}",
+               new Object[]{writer.getName(), writer._queue.size()});
+         }
+      }
+
+      synchronized (this) {
+         retries = _retries;
+      }
+
+      if (retries != null) {
+         retries.shutdown(); // the writers have completed their futures
+         try {
+            if (!retries.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+               _logger.log(Level.SEVERE, "Buffered creates that run again did not complete");
+            }
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private synchronized Writer getWriter(final String database, final String collection) throws Exception {
+      String namespace = database + "." + collection;
+      Writer writer = _writers.get(namespace);
+
+      if (_closed) {
+         throw new Exception("Buffered create is closed");
+      }
+
+      if (writer == null) {
+         writer = new Writer(namespace, _dao.getCollection(database, collection));
+         _writers.put(namespace, writer);
+         writer.start();
+      }
+
+      return writer;
+   }
+
+   /**
+    * Document and the future of its caller
+    */
+   private static class Entry {
+
+      private final Document _doc;
+      private final WireMetrics.Scope _wire;
+      private final CompletableFuture<String> _future = new CompletableFuture<>();
+
+      Entry(final Document doc, final WireMetrics.Scope wire) {
+         _doc = doc;
+         _wire = wire;
+      }
+   }
+
+   /**
+    * Writer thread of one collection
+    */
+   private class Writer extends Thread {
+
+      private final BlockingQueue<Entry> _queue = new ArrayBlockingQueue<>(_queueSize);
+      private final MongoCollection<Document> _collection;
+
+      Writer(final String namespace, final MongoCollection<Document> collection) {
+         super(CLASS + ":" + namespace);
+         this.setDaemon(true);
+         _collection = collection;
+      }
+
+      @Override
+      public void run() {
+         long deadline = 0;
+         Entry entry = null;
+         List<Entry> batch = new ArrayList<>(_batchSize);
+
+         while (!_closed || !_queue.isEmpty()) {
+            try {
+               entry = _queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS); // checks _closed when idle
+               if (entry == null) {
+                  continue;
+               }
+               batch.add(entry);
+
+               deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_batchMillis);
+               while (batch.size() < _batchSize) {
+                  entry = _closed ? _queue.poll()
+                     : _queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                  if (entry == null) {
+                     break;
+                  }
+                  batch.add(entry);
+               }
+            } catch (InterruptedException ex) {
+               _logger.log(Level.WARNING, "{0}: interrupted, writing the batch", this.getName());
+            }
+
+            if (!batch.isEmpty()) {
+               this.write(batch);
+               batch = new ArrayList<>(_batchSize);
+            }
+         }
+
+         return;
+      }
+
+      /**
+       * Insert the batch, a write is only retried when it was not sent
+       * (MongoDataAccess.call() with write = true), a document that is
+       * already inserted is never inserted again
+       */
+      private void write(final List<Entry> batch) {
+         List<Document> docs = new ArrayList<>(batch.size());
+         Exception[] errors = new Exception[batch.size()];
+         ClientSession session = null;
+         String token = null;
+         WireMetrics wire = _dao.getMetrics() == null ? null : _dao.getMetrics().getWireMetrics();
+
+         for (Entry entry : batch) {
+            docs.add(entry._doc);
+         }
+
+         if (wire != null) {
+            wire.begin();
+         }
+
+         try {
+            session = _dao.startSession();
+            this.insertMany(session, docs);
+            token = SessionToken.get(session);
+         } catch (MongoBulkWriteException ex) {
+            for (BulkWriteError error : ex.getWriteErrors()) {
+               errors[error.getIndex()] = new MongoWriteException(
+                  new WriteError(error.getCode(), error.getMessage(), error.getDetails()),
+                  ex.getServerAddress());
+            }
+            token = SessionToken.get(session);
+         } catch (Exception ex) {
+            for (int i = 0; i < errors.length; i++) {
+               errors[i] = ex;
+            }
+         } finally {
+            if (session != null) {
+               session.close();
+            }
+            if (wire != null) {
+               share(wire.end(), batch);
+            }
+         }
+
+         for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] == null) {
+               batch.get(i)._future.complete(token);
+            } else {
+               batch.get(i)._future.completeExceptionally(errors[i]);
+            }
+         }
+
+         if (_logger.isLoggable(Level.FINE)) {
+            _logger.log(Level.INFO, "{0}: inserted batch of {1}", new Object[]{this.getName(), batch.size()});
+         }
+
+         return;
+      }
+
+      /**
+       * Split the bytes of the batch between its documents
+       */
+      private void share(final long[] bytes, final List<Entry> batch) {
+         for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i)._wire != null) {
+               batch.get(i)._wire.add(0, bytes[0] / batch.size() + (i == 0 ? bytes[0] % batch.size() : 0));
+               batch.get(i)._wire.add(1, bytes[1] / batch.size() + (i == 0 ? bytes[1] % batch.size() : 0));
+            }
+         }
+      }
+
+      private void insertMany(final ClientSession session, final List<Document> docs) throws Exception {
+         _dao.call(true, () -> {
+            if (session == null) {
+               _collection.insertMany(docs, new InsertManyOptions().ordered(false));
+            } else {
+               _collection.insertMany(session, docs, new InsertManyOptions().ordered(false));
+            }
+            return null;
+         });
+      }
+   }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of long values with log-linear buckets, same idea as
+ * HdrHistogram: each power of two is split into 32 sub-buckets so any recorded
+ * value is reported within about 3% of its real value. Values must be zero or
+ * positive, negative values are recorded as zero.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class Histogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final LongAdder _count = new LongAdder();
+   private final LongAdder _sum = new LongAdder();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Record a value
+    *
+    * @param value long value
+    */
+   void record(final long value) {
+      long val = value < 0 ? 0 : value;
+
+      _counts.incrementAndGet(getIndex(val));
+      _count.increment();
+      _sum.add(val);
+      _max.accumulateAndGet(val, Math::max);
+
+      return;
+   }
+
+   long getCount() {
+      return _count.sum();
+   }
+
+   long getSum() {
+      return _sum.sum();
+   }
+
+   long getMax() {
+      return _max.get();
+   }
+
+   double getMean() {
+      long count = _count.sum();
+
+      return count == 0 ? 0.0 : (double) _sum.sum() / count;
+   }
+
+   /**
+    * Get the value at the percentile, the highest value that is equivalent to
+    * the bucket that holds the percentile
+    *
+    * @param percentile double 0.0 - 100.0
+    * @return long value, 0 if nothing has been recorded
+    */
+   long getValueAtPercentile(final double percentile) {
+      long total = 0;
+      long target = 0;
+      long cumulative = 0;
+      long[] counts = new long[BUCKETS];
+
+      for (int i = 0; i < BUCKETS; i++) {
+         counts[i] = _counts.get(i);
+         total += counts[i];
+      }
+
+      if (total == 0) {
+         return 0;
+      }
+
+      target = Math.max(1, (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * total));
+
+      for (int i = 0; i < BUCKETS; i++) {
+         cumulative += counts[i];
+         if (cumulative >= target) {
+            return Math.min(getHighestValue(i), _max.get());
+         }
+      }
+
+      return _max.get();
+   }
+
+   /**
+    * Clear all the recorded values
+    */
+   void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+         _counts.set(i, 0);
+      }
+      _count.reset();
+      _sum.reset();
+      _max.set(0);
+
+      return;
+   }
+
+   private static int getIndex(final long value) {
+      int exponent = 0;
+      int shift = 0;
+
+      if (value < SUB_COUNT) {
+         return (int) value;
+      }
+
+      exponent = 63 - Long.numberOfLeadingZeros(value);
+      shift = exponent - SUB_BITS;
+
+      return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+   }
+
+   private static long getHighestValue(final int index) {
+      int shift = 0;
+      int sub = 0;
+
+      if (index < SUB_COUNT) {
+         return index;
+      }
+
+      shift = (index / SUB_COUNT) - 1;
+      sub = index % SUB_COUNT;
+
+      if (shift >= 63 - SUB_BITS - 1) {
+         return Long.MAX_VALUE;
+      }
+
+      return ((long) (SUB_COUNT + sub + 1) << shift) - 1;
+   }
+}
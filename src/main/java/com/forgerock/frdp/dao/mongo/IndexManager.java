@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Declarative index management. The index specification is a JSON object,
+ * one array of indexes per collection name, "*" applies to all collections:
+ *
+ * <pre>
+ * {
+ *   "*": [
+ *     { "keys": { "uid": 1 }, "unique": true }
+ *   ],
+ *   "content": [
+ *     { "keys": { "data.owner": 1, "data.category": 1 } },
+ *     { "keys": { "data.type": 1 }, "partialFilterExpression": { "data.type": { "$exists": true } } },
+ *     { "keys": { "data.expires": 1 }, "expireAfterSeconds": 0, "name": "expires_ttl" },
+ *     { "keys": { "data.title": "text", "data.body": "text" }, "weights": { "data.title": 5 } }
+ *   ]
+ * }
+ * </pre>
+ *
+ * Index attributes: "keys" (required), "name", "unique", "sparse",
+ * "partialFilterExpression" and "expireAfterSeconds". Text indexes (keys
+ * with the value "text", at most one per collection) also accept "weights",
+ * "default_language" and "language_override".
+ *
+ * The indexes of a collection are reconciled the first time the collection
+ * is used: missing indexes are created with createIndexes, existing indexes
+ * with the same keys but different options and indexes that are not in the
+ * specification are reported as drift. Existing indexes are never dropped.
+ * A collection is reconciled again on its next use when its indexes could
+ * not be listed or created.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class IndexManager {
+
+   public static final String ALL = "*";
+   public static final String KEYS = "keys";
+   public static final String NAME = "name";
+   public static final String UNIQUE = "unique";
+   public static final String SPARSE = "sparse";
+   public static final String PARTIAL = "partialFilterExpression";
+   public static final String TTL = "expireAfterSeconds";
+   public static final String EXPIRES_INDEX = "timestamps_expires_ttl";
+   public static final String TEXT = "text";
+   public static final String WEIGHTS = "weights";
+   public static final String DEFAULT_LANGUAGE = "default_language";
+   public static final String LANGUAGE_OVERRIDE = "language_override";
+   private static final String _ID = "_id";
+   private static final String FTS = "_fts";
+   private static final String FTSX = "_ftsx";
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final Map<String, List<Document>> _specs = new ConcurrentHashMap<>();
+   private final Set<String> _reconciled = ConcurrentHashMap.newKeySet();
+   private final Set<String> _uniqueUid = ConcurrentHashMap.newKeySet();
+   private final Map<String, List<String>> _drift = new ConcurrentHashMap<>();
+
+   /**
+    * Create the index manager
+    *
+    * @param json JSONObject index specification, can be null
+    * @param uniqueUid boolean add a unique "uid" index to all collections
+    * @param expires boolean add a TTL index on "timestamps.expires" to all
+    * collections
+    * @throws Exception invalid specification
+    */
+   public IndexManager(final JSONObject json, final boolean uniqueUid, final boolean expires) throws Exception {
+      if (uniqueUid) {
+         this.addIndex(ALL, new Document(KEYS, new Document(ConstantsIF.UID, 1)).append(UNIQUE, true));
+      }
+
+      if (expires) {
+         this.addIndex(ALL, new Document(KEYS, new Document(Timestamps.ATTR_EXPIRES, 1))
+            .append(NAME, EXPIRES_INDEX).append(SPARSE, true).append(TTL, 0L));
+      }
+
+      if (json != null) {
+         for (Object key : json.keySet()) {
+            if (!(json.get(key) instanceof JSONArray)) {
+               throw new Exception("Index specification for '" + key + "' is not an array");
+            }
+            for (Object o : (JSONArray) json.get(key)) {
+               if (!(o instanceof JSONObject)) {
+                  throw new Exception("Index specification for '" + key + "' is not an object");
+               }
+               this.addIndex(key.toString(), Document.parse(((JSONObject) o).toJSONString()));
+            }
+         }
+      }
+   }
+
+   /**
+    * Add an index to the specification, replaces an index with the same keys
+    *
+    * @param collection String collection name or "*"
+    * @param index Document index specification
+    * @throws Exception invalid specification
+    */
+   public final synchronized void addIndex(final String collection, final Document index) throws Exception {
+      List<Document> indexes = null;
+
+      if (!(index.get(KEYS) instanceof Document) || index.get(KEYS, Document.class).isEmpty()) {
+         throw new Exception("Index specification requires '" + KEYS + "': " + index.toJson());
+      }
+
+      indexes = new ArrayList<>(_specs.getOrDefault(collection, Collections.emptyList()));
+      indexes.removeIf(i -> getKeyString(i.get(KEYS, Document.class))
+         .equals(getKeyString(index.get(KEYS, Document.class))));
+      indexes.add(index);
+
+      _specs.put(collection, indexes);
+      _reconciled.clear(); // re-check all collections
+
+      return;
+   }
+
+   /**
+    * Get the specification of a text index
+    *
+    * @param attributes String comma separated attributes, "$**" for all the
+    * String attributes
+    * @param language String default language, null for the server default
+    * @return Document index specification
+    */
+   public static Document getTextIndex(final String attributes, final String language) {
+      Document keys = new Document();
+      Document index = null;
+
+      for (String attr : attributes.split(",")) {
+         if (!attr.trim().isEmpty()) {
+            keys.append(attr.trim(), TEXT);
+         }
+      }
+
+      index = new Document(KEYS, keys);
+      if (language != null && !language.isEmpty()) {
+         index.append(DEFAULT_LANGUAGE, language);
+      }
+
+      return index;
+   }
+
+   /**
+    * Get the reported drift, by namespace
+    *
+    * @return Map of namespace to drift messages
+    */
+   public Map<String, List<String>> getDrift() {
+      return Collections.unmodifiableMap(_drift);
+   }
+
+   /**
+    * Check if the collection has a unique index on "uid" (without a partial
+    * filter), known once the collection is reconciled
+    *
+    * @param namespace String "database.collection"
+    * @return boolean true if the index exists
+    */
+   public boolean hasUniqueUid(final String namespace) {
+      return _uniqueUid.contains(namespace);
+   }
+
+   /**
+    * Reconcile the indexes of the collection with the specification, once
+    * per namespace: a failed reconcile is tried again on the next call. Errors
+    * are logged, they are not thrown.
+    *
+    * @param collection MongoCollection
+    */
+   public void ensure(final MongoCollection<Document> collection) {
+      String namespace = collection.getNamespace().getFullName();
+
+      if (_reconciled.contains(namespace)) {
+         return;
+      }
+
+      synchronized (this) {
+         if (!_reconciled.contains(namespace)) {
+            try {
+               if (this.reconcile(collection)) {
+                  _reconciled.add(namespace);
+               }
+            } catch (Exception ex) {
+               _logger.log(Level.WARNING, "Can not reconcile indexes for ''{0}'': {1}",
+                  new Object[]{namespace, ex.getMessage()});
+            }
+         }
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Reconcile the indexes of the collection
+    *
+    * @return boolean false if the missing indexes could not be created
+    */
+   private boolean reconcile(final MongoCollection<Document> collection) {
+      boolean created = true;
+      String namespace = collection.getNamespace().getFullName();
+      String uidKeys = getKeyString(new Document(ConstantsIF.UID, 1));
+      Document existing = null;
+      Document uid = null;
+      List<Document> specs = null;
+      List<String> drift = new LinkedList<>();
+      List<IndexModel> missing = new LinkedList<>();
+      Map<String, Document> indexes = new ConcurrentHashMap<>();
+
+      specs = new ArrayList<>(_specs.getOrDefault(ALL, Collections.emptyList()));
+      for (Document spec : _specs.getOrDefault(collection.getNamespace().getCollectionName(),
+         Collections.emptyList())) {
+         specs.removeIf(i -> getKeyString(i.get(KEYS, Document.class))
+            .equals(getKeyString(spec.get(KEYS, Document.class))));
+         specs.add(spec);
+      }
+
+      for (Document index : collection.listIndexes()) {
+         indexes.put(getKeyString(index.get("key", Document.class), index.get(WEIGHTS, Document.class)), index);
+      }
+
+      uid = indexes.get(uidKeys);
+
+      for (Document spec : specs) {
+         existing = indexes.remove(getKeyString(spec.get(KEYS, Document.class)));
+         if (existing == null) {
+            missing.add(new IndexModel(spec.get(KEYS, Document.class), getOptions(spec)));
+         } else {
+            this.compare(spec, existing, drift);
+         }
+      }
+
+      for (Document index : indexes.values()) {
+         if (!getKeyString(index.get("key", Document.class)).equals(getKeyString(new Document(_ID, 1)))) {
+            drift.add("Index '" + index.getString(NAME) + "' is not in the specification");
+         }
+      }
+
+      if (!missing.isEmpty()) {
+         try {
+            collection.createIndexes(missing);
+            _logger.log(Level.INFO, "Created {0} index(es) for ''{1}''", new Object[]{missing.size(), namespace});
+         } catch (Exception ex) {
+            created = false;
+            drift.add("Can not create indexes: " + ex.getMessage());
+         }
+      }
+
+      if (uid == null && created) { // a missing "uid" index of the specification was created
+         uid = specs.stream().filter(i -> getKeyString(i.get(KEYS, Document.class)).equals(uidKeys))
+            .findFirst().orElse(null);
+      }
+
+      if (uid != null && Boolean.TRUE.equals(uid.get(UNIQUE)) && !uid.containsKey(PARTIAL)) {
+         _uniqueUid.add(namespace);
+      } else {
+         _uniqueUid.remove(namespace);
+      }
+
+      if (drift.isEmpty()) {
+         _drift.remove(namespace);
+      } else {
+         _drift.put(namespace, drift);
+         for (String msg : drift) {
+            _logger.log(Level.WARNING, "Index drift for ''{0}'': {1}", new Object[]{namespace, msg});
+         }
+      }
+
+      return created;
+   }
+
+   private void compare(final Document spec, final Document existing, final List<String> drift) {
+      String name = existing.getString(NAME);
+
+      if (spec.getBoolean(UNIQUE, false) != existing.getBoolean(UNIQUE, false)) {
+         drift.add("Index '" + name + "' unique=" + existing.getBoolean(UNIQUE, false)
+            + ", specification unique=" + spec.getBoolean(UNIQUE, false));
+      }
+      if (spec.getBoolean(SPARSE, false) != existing.getBoolean(SPARSE, false)) {
+         drift.add("Index '" + name + "' sparse=" + existing.getBoolean(SPARSE, false)
+            + ", specification sparse=" + spec.getBoolean(SPARSE, false));
+      }
+      if (!String.valueOf(getLong(spec, TTL)).equals(String.valueOf(getLong(existing, TTL)))) {
+         drift.add("Index '" + name + "' " + TTL + "=" + getLong(existing, TTL)
+            + ", specification " + TTL + "=" + getLong(spec, TTL));
+      }
+      if (spec.containsKey(PARTIAL) != existing.containsKey(PARTIAL)
+         || (spec.containsKey(PARTIAL) && !spec.get(PARTIAL, Document.class).toJson()
+            .equals(existing.get(PARTIAL, Document.class).toJson()))) {
+         drift.add("Index '" + name + "' " + PARTIAL + " is different from the specification");
+      }
+      if (spec.containsKey(DEFAULT_LANGUAGE)
+         && !spec.get(DEFAULT_LANGUAGE).equals(existing.get(DEFAULT_LANGUAGE))) {
+         drift.add("Index '" + name + "' " + DEFAULT_LANGUAGE + "=" + existing.get(DEFAULT_LANGUAGE)
+            + ", specification " + DEFAULT_LANGUAGE + "=" + spec.get(DEFAULT_LANGUAGE));
+      }
+
+      return;
+   }
+
+   private static IndexOptions getOptions(final Document spec) {
+      IndexOptions options = new IndexOptions();
+
+      if (spec.containsKey(NAME)) {
+         options.name(spec.getString(NAME));
+      }
+      options.unique(spec.getBoolean(UNIQUE, false));
+      options.sparse(spec.getBoolean(SPARSE, false));
+      if (spec.get(PARTIAL) instanceof Document) {
+         options.partialFilterExpression(spec.get(PARTIAL, Document.class));
+      }
+      if (getLong(spec, TTL) != null) {
+         options.expireAfter(getLong(spec, TTL), TimeUnit.SECONDS);
+      }
+      if (spec.get(WEIGHTS) instanceof Document) {
+         options.weights(spec.get(WEIGHTS, Document.class));
+      }
+      if (spec.get(DEFAULT_LANGUAGE) instanceof String) {
+         options.defaultLanguage(spec.getString(DEFAULT_LANGUAGE));
+      }
+      if (spec.get(LANGUAGE_OVERRIDE) instanceof String) {
+         options.languageOverride(spec.getString(LANGUAGE_OVERRIDE));
+      }
+
+      return options;
+   }
+
+   private static Long getLong(final Document doc, final String key) {
+      Object value = doc.get(key);
+
+      return value instanceof Number ? ((Number) value).longValue() : null;
+   }
+
+   private static String getKeyString(final Document keys) {
+      return getKeyString(keys, null);
+   }
+
+   /**
+    * Key pattern as a String, numbers are normalized so { "uid": 1 } from JSON
+    * (Long) and from the server (Integer or Double) are equal. The text keys
+    * are sorted in place of the first one: the server returns a text index as
+    * { "_fts": "text", "_ftsx": 1 } with the attributes in its "weights".
+    */
+   private static String getKeyString(final Document keys, final Document weights) {
+      boolean text = false;
+      StringBuilder buf = new StringBuilder();
+      List<String> fields = new ArrayList<>();
+
+      if (keys == null) {
+         return "";
+      }
+
+      if (weights != null && keys.containsKey(FTS)) {
+         fields.addAll(weights.keySet());
+      } else {
+         for (Map.Entry<String, Object> entry : keys.entrySet()) {
+            if (TEXT.equals(entry.getValue())) {
+               fields.add(entry.getKey());
+            }
+         }
+      }
+      Collections.sort(fields);
+
+      for (Map.Entry<String, Object> entry : keys.entrySet()) {
+         if (FTSX.equals(entry.getKey())) {
+            continue;
+         }
+         if (FTS.equals(entry.getKey()) || TEXT.equals(entry.getValue())) {
+            for (int i = 0; !text && i < fields.size(); i++) {
+               buf.append(fields.get(i)).append(':').append(TEXT).append(',');
+            }
+            text = true;
+            continue;
+         }
+         buf.append(entry.getKey()).append(':')
+            .append(entry.getValue() instanceof Number
+               ? Long.toString(((Number) entry.getValue()).longValue())
+               : String.valueOf(entry.getValue()))
+            .append(',');
+      }
+
+      return buf.toString();
+   }
+}
@@ -0,0 +1,593 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.common.CoreIF.STATE;
+import com.forgerock.frdp.dao.DataAccessIF;
+import com.forgerock.frdp.dao.Operation;
+import com.forgerock.frdp.dao.OperationIF;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.json.simple.JSONObject;
+
+/**
+ * Load and soak test: threads drive execute() with a configurable workload
+ * and report the throughput and the latency percentiles. TestMongoDataAccess
+ * is still the conformance test, this one measures.
+ *
+ * The arguments are name=value pairs, the names that are not options below
+ * are passed as params to MongoFactory (host, port, engine, create.buffered
+ * ...). Options:
+ *
+ * <pre>
+ * mix        read:70,replace:10,create:5,delete:5,search:10
+ *                        weights of create, read, replace, delete and search
+ * keys       100000      number of "uid" values, "load-0" ... "load-(keys-1)"
+ * distribution uniform   key distribution: uniform or zipfian
+ * zipf.theta 0.99        skew of the zipfian distribution, 0 - 1 (exclusive)
+ * size       1024        document payload in bytes, min-max for a uniform range
+ * threads    8           worker threads
+ * rate       0           target operations per second (open loop), 0 for as
+ *                        fast as possible (closed loop)
+ * duration   60          measured seconds
+ * warmup     10          seconds run before the measurement
+ * interval   10          seconds between the progress lines, 0 for none
+ * preload    true        create all the keys before the run
+ * database   test-server
+ * collection load
+ * </pre>
+ *
+ * With a target rate each operation has an intended start time on a fixed
+ * schedule. The response time is measured from the intended start, not from
+ * the actual one: an operation that waited behind a slow one is charged for
+ * the wait. This corrects the coordinated omission of a closed loop, which
+ * stops sending while the system stalls and then reports only the stall.
+ * The service time (from the actual start) is reported as well.
+ *
+ * All the operations use keys from the same key space, a CREATE of a key
+ * that exists (ERROR) or a READ of a deleted key (NOTEXIST) is expected and
+ * counted. The exit code is 1 if an operation FAILED.
+ *
+ * <pre>
+ * mvn compile exec:java -Dexec.mainClass=com.forgerock.frdp.dao.mongo.LoadTestMongoDataAccess \
+ *    -Dexec.args="engine=mongo threads=16 rate=5000 duration=600 distribution=zipfian"
+ * </pre>
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class LoadTestMongoDataAccess {
+
+   private static final String[] OPERATIONS = {"create", "read", "replace", "delete", "search"};
+   private static final String UID_PREFIX = "load-";
+   private static final String GROUP = "group";
+   private static final String PAYLOAD = "payload";
+   private static final int GROUP_SIZE = 10;
+   private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList(
+      "mix", "keys", "distribution", "zipf.theta", "size", "threads", "rate",
+      "duration", "warmup", "interval", "preload", "database", "collection"));
+
+   public static void main(String[] args) throws Exception {
+      int eq = 0;
+      long start = 0;
+      long measured = 0;
+      long end = 0;
+      long failed = 0;
+      Map<String, String> options = new HashMap<>();
+      Map<String, String> params = new HashMap<>();
+      DataAccessIF dao = null;
+      Workload workload = null;
+      Stats stats = null;
+      List<Thread> workers = new ArrayList<>();
+
+      for (String arg : args) {
+         eq = arg.indexOf('=');
+         if (eq < 1) {
+            throw new IllegalArgumentException("Argument is not name=value: '" + arg + "'");
+         }
+         (OPTIONS.contains(arg.substring(0, eq)) ? options : params)
+            .put(arg.substring(0, eq), arg.substring(eq + 1));
+      }
+
+      // same defaults as TestMongoDataAccess
+      params.putIfAbsent(MongoDataAccess.PARAM_HOST, "127.0.0.1");
+      params.putIfAbsent(MongoDataAccess.PARAM_PORT, "27017");
+      params.putIfAbsent(MongoDataAccess.PARAM_AUTHEN_USER, "testadmin");
+      params.putIfAbsent(MongoDataAccess.PARAM_AUTHEN_PASSWORD, "password");
+      params.putIfAbsent(MongoDataAccess.PARAM_AUTHEN_DATABASE, "test-server");
+
+      workload = new Workload(options);
+      dao = MongoFactory.getInstance(params);
+
+      System.out.println("==== Load: " + workload);
+
+      if (workload._preload) {
+         start = System.currentTimeMillis();
+         preload(dao, workload);
+         System.out.println("==== Preload: " + workload._keys + " keys in "
+            + (System.currentTimeMillis() - start) + "ms");
+      }
+
+      stats = new Stats();
+      start = System.nanoTime();
+      measured = start + workload._warmupNanos;
+      end = measured + workload._durationNanos;
+
+      for (int i = 0; i < workload._threads; i++) {
+         workers.add(new Worker(dao, workload, stats, i, start, measured, end));
+      }
+      for (Thread worker : workers) {
+         worker.start();
+      }
+
+      report(workload, stats, measured, end);
+
+      for (Thread worker : workers) {
+         worker.join();
+      }
+
+      failed = stats.print(workload._durationNanos, workload._rate);
+
+      dao.close();
+
+      if (failed > 0) {
+         System.exit(1);
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Create all the keys, with the worker threads and no rate limit. Keys
+    * that exist are left as they are.
+    */
+   private static void preload(final DataAccessIF dao, final Workload workload) throws Exception {
+      List<Thread> loaders = new ArrayList<>();
+
+      for (int i = 0; i < workload._threads; i++) {
+         final int index = i;
+         loaders.add(new Thread(() -> {
+            for (long key = index; key < workload._keys; key += workload._threads) {
+               dao.execute(workload.getOperation(0, key, ThreadLocalRandom.current()));
+            }
+         }, "preload-" + i));
+      }
+      for (Thread loader : loaders) {
+         loader.start();
+      }
+      for (Thread loader : loaders) {
+         loader.join();
+      }
+
+      return;
+   }
+
+   /**
+    * Print a progress line every interval of the measurement
+    */
+   private static void report(final Workload workload, final Stats stats, final long measured,
+      final long end) throws InterruptedException {
+      long now = 0;
+      long last = measured;
+      long next = measured + workload._intervalNanos;
+      Histogram interval = null;
+
+      if (workload._intervalNanos <= 0) {
+         return;
+      }
+
+      while (next <= end) {
+         while ((now = System.nanoTime()) < next) {
+            LockSupport.parkNanos(next - now);
+         }
+         interval = stats._interval.getAndSet(new Histogram());
+         System.out.println(String.format("==== %6.0fs %10.1f ops/s  p50 %8.3f  p99 %8.3f  p999 %8.3f  max %8.3f ms",
+            (now - measured) / 1.0E9, interval.getCount() * 1.0E9 / Math.max(1, now - last),
+            toMillis(interval.getValueAtPercentile(50.0)), toMillis(interval.getValueAtPercentile(99.0)),
+            toMillis(interval.getValueAtPercentile(99.9)), toMillis(interval.getMax())));
+         last = now;
+         next += workload._intervalNanos;
+      }
+
+      return;
+   }
+
+   private static double toMillis(final long micros) {
+      return micros / 1000.0;
+   }
+
+   private static long getLong(final Map<String, String> options, final String name, final long dflt) {
+      return options.containsKey(name) ? Long.parseLong(options.get(name).trim()) : dflt;
+   }
+
+   /**
+    * Workload options and generators, shared by the workers
+    */
+   private static class Workload {
+
+      private final int[] _weights = new int[OPERATIONS.length];
+      private final int _totalWeight;
+      private final long _keys;
+      private final Zipfian _zipfian;
+      private final int _minSize;
+      private final int _maxSize;
+      private final int _threads;
+      private final double _rate;
+      private final long _durationNanos;
+      private final long _warmupNanos;
+      private final long _intervalNanos;
+      private final boolean _preload;
+      private final String _database;
+      private final String _collection;
+      private final String _description;
+
+      Workload(final Map<String, String> options) {
+         int total = 0;
+         int colon = 0;
+         String mix = options.getOrDefault("mix", "read:70,replace:10,create:5,delete:5,search:10");
+         String size = options.getOrDefault("size", "1024");
+         String distribution = options.getOrDefault("distribution", "uniform");
+
+         for (String entry : mix.split(",")) {
+            colon = entry.indexOf(':');
+            if (colon < 1 || Arrays.asList(OPERATIONS).indexOf(entry.substring(0, colon).trim()) < 0) {
+               throw new IllegalArgumentException("Mix entry is not operation:weight: '" + entry
+                  + "', operations: " + Arrays.toString(OPERATIONS));
+            }
+            _weights[Arrays.asList(OPERATIONS).indexOf(entry.substring(0, colon).trim())]
+               = Integer.parseInt(entry.substring(colon + 1).trim());
+         }
+         for (int weight : _weights) {
+            total += Math.max(0, weight);
+         }
+         if (total == 0) {
+            throw new IllegalArgumentException("Mix has no operations: '" + mix + "'");
+         }
+         _totalWeight = total;
+
+         _keys = Math.max(1, getLong(options, "keys", 100000));
+         if ("zipfian".equalsIgnoreCase(distribution)) {
+            _zipfian = new Zipfian(_keys, Double.parseDouble(options.getOrDefault("zipf.theta", "0.99")));
+         } else if ("uniform".equalsIgnoreCase(distribution)) {
+            _zipfian = null;
+         } else {
+            throw new IllegalArgumentException("Unsupported distribution '" + distribution
+               + "', use 'uniform' or 'zipfian'");
+         }
+
+         _minSize = Integer.parseInt(size.split("-")[0].trim());
+         _maxSize = size.contains("-") ? Integer.parseInt(size.split("-")[1].trim()) : _minSize;
+         if (_minSize < 0 || _maxSize < _minSize) {
+            throw new IllegalArgumentException("Size is not min-max: '" + size + "'");
+         }
+
+         _threads = (int) Math.max(1, getLong(options, "threads", 8));
+         _rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+         _durationNanos = getLong(options, "duration", 60) * 1000000000L;
+         _warmupNanos = getLong(options, "warmup", 10) * 1000000000L;
+         _intervalNanos = getLong(options, "interval", 10) * 1000000000L;
+         _preload = Boolean.parseBoolean(options.getOrDefault("preload", "true"));
+         _database = options.getOrDefault("database", "test-server");
+         _collection = options.getOrDefault("collection", "load");
+
+         _description = "mix=" + mix + " keys=" + _keys + " distribution=" + distribution
+            + (_zipfian == null ? "" : "(" + _zipfian._theta + ")") + " size=" + size
+            + " threads=" + _threads + " rate=" + (_rate > 0 ? _rate + "/s" : "max")
+            + " duration=" + _durationNanos / 1000000000L + "s warmup=" + _warmupNanos / 1000000000L + "s";
+      }
+
+      int nextOperation(final ThreadLocalRandom random) {
+         int value = random.nextInt(_totalWeight);
+
+         for (int i = 0; i < _weights.length; i++) {
+            value -= Math.max(0, _weights[i]);
+            if (value < 0) {
+               return i;
+            }
+         }
+
+         return _weights.length - 1;
+      }
+
+      long nextKey(final ThreadLocalRandom random) {
+         return _zipfian == null ? random.nextLong(_keys) : _zipfian.next(random);
+      }
+
+      /**
+       * Get the input of an operation, index into OPERATIONS
+       */
+      OperationIF getOperation(final int index, final long key, final ThreadLocalRandom random) {
+         OperationIF operInput = null;
+         JSONObject jsonInput = new JSONObject();
+         JSONObject jsonData = null;
+         JSONObject jsonQuery = null;
+
+         switch (OPERATIONS[index]) {
+            case "create":
+            case "replace": {
+               operInput = new Operation("create".equals(OPERATIONS[index])
+                  ? OperationIF.TYPE.CREATE : OperationIF.TYPE.REPLACE);
+               jsonData = new JSONObject();
+               jsonData.put(GROUP, this.getGroup(key));
+               jsonData.put(PAYLOAD, this.getPayload(random));
+               jsonInput.put(ConstantsIF.UID, UID_PREFIX + key);
+               jsonInput.put(ConstantsIF.DATA, jsonData);
+               break;
+            }
+            case "read":
+            case "delete": {
+               operInput = new Operation("read".equals(OPERATIONS[index])
+                  ? OperationIF.TYPE.READ : OperationIF.TYPE.DELETE);
+               jsonInput.put(ConstantsIF.UID, UID_PREFIX + key);
+               break;
+            }
+            default: {
+               operInput = new Operation(OperationIF.TYPE.SEARCH);
+               jsonQuery = new JSONObject();
+               jsonQuery.put(ConstantsIF.OPERATOR, ConstantsIF.EQUAL);
+               jsonQuery.put(ConstantsIF.ATTRIBUTE, ConstantsIF.DATA + "." + GROUP);
+               jsonQuery.put(ConstantsIF.VALUE, this.getGroup(key));
+               jsonInput.put(ConstantsIF.QUERY, jsonQuery);
+               break;
+            }
+         }
+
+         operInput.setParam(MongoDataAccess.PARAM_DATABASE, _database);
+         operInput.setParam(MongoDataAccess.PARAM_COLLECTION, _collection);
+         operInput.setJSON(jsonInput);
+
+         return operInput;
+      }
+
+      /**
+       * A SEARCH returns about GROUP_SIZE documents
+       */
+      private String getGroup(final long key) {
+         return "g" + (key / GROUP_SIZE);
+      }
+
+      private String getPayload(final ThreadLocalRandom random) {
+         char[] chars = new char[_minSize == _maxSize ? _minSize : random.nextInt(_minSize, _maxSize + 1)];
+
+         for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+         }
+
+         return new String(chars);
+      }
+
+      @Override
+      public String toString() {
+         return _description;
+      }
+   }
+
+   /**
+    * Scrambled zipfian key generator (Gray et al., "Quickly Generating
+    * Billion-Record Synthetic Databases"): the rank of a key is zipfian, the
+    * hot keys are spread over the key space by a hash of the rank
+    */
+   private static class Zipfian {
+
+      private final long _items;
+      private final double _theta;
+      private final double _zetan;
+      private final double _alpha;
+      private final double _eta;
+
+      Zipfian(final long items, final double theta) {
+         double zeta2 = 0.0;
+
+         if (theta <= 0.0 || theta >= 1.0) {
+            throw new IllegalArgumentException("zipf.theta must be between 0 and 1 (exclusive): " + theta);
+         }
+
+         _items = items;
+         _theta = theta;
+         _zetan = zeta(items, theta);
+         zeta2 = zeta(2, theta);
+         _alpha = 1.0 / (1.0 - theta);
+         _eta = (1.0 - Math.pow(2.0 / items, 1.0 - theta)) / (1.0 - zeta2 / _zetan);
+      }
+
+      long next(final ThreadLocalRandom random) {
+         long rank = 0;
+         double u = random.nextDouble();
+         double uz = u * _zetan;
+
+         if (uz < 1.0) {
+            rank = 0;
+         } else if (uz < 1.0 + Math.pow(0.5, _theta)) {
+            rank = 1;
+         } else {
+            rank = Math.min(_items - 1, (long) (_items * Math.pow(_eta * u - _eta + 1.0, _alpha)));
+         }
+
+         return Math.floorMod(scramble(rank), _items);
+      }
+
+      private static double zeta(final long items, final double theta) {
+         double sum = 0.0;
+
+         for (long i = 1; i <= items; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+         }
+
+         return sum;
+      }
+
+      /**
+       * MurmurHash3 finalizer
+       */
+      private static long scramble(final long value) {
+         long hash = value;
+
+         hash ^= hash >>> 33;
+         hash *= 0xff51afd7ed558ccdL;
+         hash ^= hash >>> 33;
+         hash *= 0xc4ceb93fe53e4b1aL;
+         hash ^= hash >>> 33;
+
+         return hash;
+      }
+   }
+
+   /**
+    * Latencies (microseconds) and outcomes of the measured operations
+    */
+   private static class Stats {
+
+      private final Histogram _response = new Histogram();
+      private final Histogram[] _responses = new Histogram[OPERATIONS.length];
+      private final Histogram[] _services = new Histogram[OPERATIONS.length];
+      private final LongAdder[][] _states = new LongAdder[OPERATIONS.length][STATE.values().length];
+      private final AtomicReference<Histogram> _interval = new AtomicReference<>(new Histogram());
+
+      Stats() {
+         for (int i = 0; i < OPERATIONS.length; i++) {
+            _responses[i] = new Histogram();
+            _services[i] = new Histogram();
+            for (int s = 0; s < STATE.values().length; s++) {
+               _states[i][s] = new LongAdder();
+            }
+         }
+      }
+
+      void record(final int index, final STATE state, final long response, final long service) {
+         _response.record(response);
+         _interval.get().record(response);
+         _responses[index].record(response);
+         _services[index].record(service);
+         _states[index][(state == null ? STATE.FAILED : state).ordinal()].increment();
+      }
+
+      /**
+       * Print the summary
+       *
+       * @param durationNanos long measured time
+       * @param rate double target rate, 0 if none
+       * @return long number of FAILED operations
+       */
+      long print(final long durationNanos, final double rate) {
+         long failed = 0;
+         StringBuilder states = null;
+
+         System.out.println(String.format("==== Throughput: %.1f ops/s, %d operations",
+            _response.getCount() * 1.0E9 / Math.max(1, durationNanos), _response.getCount()));
+         if (rate > 0 && _response.getCount() * 1.0E9 / Math.max(1, durationNanos) < rate * 0.99) {
+            System.out.println(String.format("==== Target rate %.1f ops/s not reached, the response "
+               + "times include the time the operations were behind schedule", rate));
+         }
+         System.out.println(String.format("==== %-8s %10s %9s %9s %9s %9s %9s   %s",
+            "", "count", "p50", "p99", "p999", "max", "svc p99", "states"));
+
+         for (int i = 0; i < OPERATIONS.length; i++) {
+            if (_responses[i].getCount() == 0) {
+               continue;
+            }
+            states = new StringBuilder();
+            for (STATE state : STATE.values()) {
+               if (_states[i][state.ordinal()].sum() > 0) {
+                  states.append(state).append('=').append(_states[i][state.ordinal()].sum()).append(' ');
+               }
+            }
+            failed += _states[i][STATE.FAILED.ordinal()].sum();
+            this.printLine(OPERATIONS[i], _responses[i], _services[i], states.toString());
+         }
+
+         this.printLine("all", _response, null, "");
+         System.out.println("==== Latency in ms from the intended start (svc: from the actual start)");
+
+         return failed;
+      }
+
+      private void printLine(final String name, final Histogram response, final Histogram service,
+         final String states) {
+         System.out.println(String.format("==== %-8s %10d %9.3f %9.3f %9.3f %9.3f %9s   %s",
+            name, response.getCount(),
+            toMillis(response.getValueAtPercentile(50.0)), toMillis(response.getValueAtPercentile(99.0)),
+            toMillis(response.getValueAtPercentile(99.9)), toMillis(response.getMax()),
+            service == null ? "" : String.format("%.3f", toMillis(service.getValueAtPercentile(99.0))),
+            states));
+      }
+   }
+
+   /**
+    * Worker thread: with a rate, runs its share of the schedule, each
+    * operation at its intended start or as soon as the previous one is done
+    */
+   private static class Worker extends Thread {
+
+      private final DataAccessIF _dao;
+      private final Workload _workload;
+      private final Stats _stats;
+      private final long _start;
+      private final long _measured;
+      private final long _end;
+      private final long _period;
+
+      Worker(final DataAccessIF dao, final Workload workload, final Stats stats, final int index,
+         final long start, final long measured, final long end) {
+         super("load-" + index);
+         _dao = dao;
+         _workload = workload;
+         _stats = stats;
+         _period = workload._rate > 0 ? (long) (workload._threads * 1.0E9 / workload._rate) : 0;
+         _start = start + _period * index / workload._threads; // threads are staggered
+         _measured = measured;
+         _end = end;
+      }
+
+      @Override
+      public void run() {
+         int index = 0;
+         long intended = _start;
+         long begin = 0;
+         long done = 0;
+         ThreadLocalRandom random = ThreadLocalRandom.current();
+         OperationIF operInput = null;
+         OperationIF operOutput = null;
+
+         while (true) {
+            if (_period > 0) {
+               while ((begin = System.nanoTime()) < intended) {
+                  LockSupport.parkNanos(intended - begin);
+               }
+            } else {
+               intended = begin = System.nanoTime();
+            }
+
+            if (intended >= _end || begin >= _end) {
+               return; // an operation still behind schedule at the end is not sent
+            }
+
+            index = _workload.nextOperation(random);
+            operInput = _workload.getOperation(index, _workload.nextKey(random), random);
+            begin = System.nanoTime();
+            operOutput = _dao.execute(operInput);
+            done = System.nanoTime();
+
+            if (intended >= _measured) {
+               _stats.record(index, operOutput == null ? null : operOutput.getState(),
+                  (done - intended) / 1000L, (done - begin) / 1000L);
+            }
+
+            intended += _period;
+         }
+      }
+   }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory storage for a single "collection", used by MemoryDataAccess.
+ *
+ * Documents are stored by "uid" in a concurrent hash map. Secondary indexes
+ * are built on demand for every attribute used in an equality query and are
+ * maintained by all later writes. Reads are lock free, writes are serialized
+ * per collection so the documents and the indexes stay consistent.
+ *
+ * Query filters are the MongoDB filter documents produced by
+ * MongoDataAccess.getQueryFromJSON() and Timestamps (expiry, version),
+ * rendered as a Document:
+ *
+ * <pre>
+ * {}                                  all documents
+ * { "attr": "value" }                 equality
+ * { "attr": { "$eq": "value" } }      equality, also "$ne" and "$in"
+ * { "attr": { "$lte": date } }        range, also "$lt", "$gt" and "$gte"
+ * { "attr": { "$exists": false } }    attribute is missing
+ * { "attr": { "$not": { ... } } }     negation of the operators
+ * { "$and": [ { ... }, { ... } ] }    conjunction
+ * { "$or": [ { ... }, { ... } ] }     disjunction
+ * </pre>
+ *
+ * A range compares numbers with numbers and other values with values of the
+ * same type (String, Date, ...), same as MongoDB. Other operators ("$text")
+ * are rejected.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class MemoryCollection {
+
+   private static final String _ID = "_id";
+   private static final String OPER_AND = "$and";
+   private static final String OPER_OR = "$or";
+   private static final String OPER_EQ = "$eq";
+   private static final String OPER_NE = "$ne";
+   private static final String OPER_IN = "$in";
+   private static final String OPER_GT = "$gt";
+   private static final String OPER_GTE = "$gte";
+   private static final String OPER_LT = "$lt";
+   private static final String OPER_LTE = "$lte";
+   private static final String OPER_EXISTS = "$exists";
+   private static final String OPER_NOT = "$not";
+   private static final Object NULL_VALUE = new Object();
+
+   private final Map<String, Document> _documents = new ConcurrentHashMap<>();
+   private final Map<String, Map<Object, Set<String>>> _indexes = new ConcurrentHashMap<>();
+
+   /**
+    * New document from the current document
+    */
+   @FunctionalInterface
+   interface UpdateFunction {
+
+      Document apply(Document current) throws Exception;
+   }
+
+   /**
+    * Get the document for the "uid"
+    *
+    * @param uid String document identifier
+    * @return Document, null if it does not exist
+    */
+   Document get(final String uid) {
+      return uid == null ? null : _documents.get(uid);
+   }
+
+   /**
+    * Insert a new document, the "uid" must be unique
+    *
+    * @param uid String document identifier
+    * @param doc Document to insert
+    * @return boolean true if inserted, false if the "uid" already exists
+    */
+   synchronized boolean insert(final String uid, final Document doc) {
+      if (_documents.putIfAbsent(uid, doc) != null) {
+         return false;
+      }
+      this.addToIndexes(uid, doc);
+      return true;
+   }
+
+   /**
+    * Atomically update an existing document
+    *
+    * @param uid String document identifier
+    * @param function UpdateFunction new document from the current document,
+    * returns null to leave the document unchanged
+    * @return Document the current (previous) document, null if the "uid" does
+    * not exist
+    * @throws Exception from the function
+    */
+   synchronized Document update(final String uid, final UpdateFunction function) throws Exception {
+      Document current = _documents.get(uid);
+      Document doc = null;
+
+      if (current != null) {
+         doc = function.apply(current);
+         if (doc != null) {
+            this.removeFromIndexes(uid, current);
+            _documents.put(uid, doc);
+            this.addToIndexes(uid, doc);
+         }
+      }
+
+      return current;
+   }
+
+   /**
+    * Remove a document
+    *
+    * @param uid String document identifier
+    * @return boolean true if the document was removed
+    */
+   synchronized boolean remove(final String uid) {
+      Document old = _documents.remove(uid);
+
+      if (old == null) {
+         return false;
+      }
+      this.removeFromIndexes(uid, old);
+      return true;
+   }
+
+   /**
+    * Find all the documents that match the filter, in "_id" (insertion) order
+    *
+    * @param filter Document rendered MongoDB filter
+    * @return List of Documents
+    * @throws Exception unsupported filter
+    */
+   List<Document> find(final Document filter) throws Exception {
+      Collection<Document> candidates = null;
+      List<Document> results = new ArrayList<>();
+
+      candidates = this.getCandidates(filter);
+
+      for (Document doc : candidates) {
+         if (doc != null && matches(doc, filter)) {
+            results.add(doc);
+         }
+      }
+
+      results.sort(Comparator.comparing(
+         (Document d) -> d.getObjectId(_ID), Comparator.nullsLast(Comparator.<ObjectId>naturalOrder())));
+
+      return results;
+   }
+
+   /**
+    * Get the smallest set of documents that could match the filter. Uses (and
+    * builds) a secondary index for the first equality term.
+    *
+    * @param filter Document rendered MongoDB filter
+    * @return Collection of candidate Documents
+    */
+   private Collection<Document> getCandidates(final Document filter) {
+      Set<String> uids = null;
+      Map.Entry<String, Object> term = null;
+      Collection<Document> candidates = null;
+
+      term = getEqualityTerm(filter);
+
+      if (term == null) {
+         return _documents.values();
+      }
+
+      uids = this.getIndex(term.getKey()).get(normalize(term.getValue()));
+
+      candidates = new LinkedList<>();
+
+      if (uids != null) {
+         for (String uid : uids) {
+            candidates.add(_documents.get(uid));
+         }
+      }
+
+      return candidates;
+   }
+
+   /**
+    * Get the index for the attribute, build it if it does not exist
+    *
+    * @param attr String attribute name (dot notation)
+    * @return Map of attribute value to set of "uid" values
+    */
+   private Map<Object, Set<String>> getIndex(final String attr) {
+      Map<Object, Set<String>> index = _indexes.get(attr);
+
+      if (index == null) {
+         synchronized (this) {
+            index = _indexes.get(attr);
+            if (index == null) {
+               index = new ConcurrentHashMap<>();
+               for (Map.Entry<String, Document> entry : _documents.entrySet()) {
+                  addToIndex(index, attr, entry.getKey(), entry.getValue());
+               }
+               _indexes.put(attr, index);
+            }
+         }
+      }
+
+      return index;
+   }
+
+   private void addToIndexes(final String uid, final Document doc) {
+      for (Map.Entry<String, Map<Object, Set<String>>> entry : _indexes.entrySet()) {
+         addToIndex(entry.getValue(), entry.getKey(), uid, doc);
+      }
+   }
+
+   private void removeFromIndexes(final String uid, final Document doc) {
+      Set<String> uids = null;
+
+      for (Map.Entry<String, Map<Object, Set<String>>> entry : _indexes.entrySet()) {
+         for (Object value : getValues(doc, entry.getKey())) {
+            uids = entry.getValue().get(normalize(value));
+            if (uids != null) {
+               uids.remove(uid);
+               if (uids.isEmpty()) {
+                  entry.getValue().remove(normalize(value));
+               }
+            }
+         }
+      }
+   }
+
+   private static void addToIndex(final Map<Object, Set<String>> index, final String attr,
+      final String uid, final Document doc) {
+      for (Object value : getValues(doc, attr)) {
+         index.computeIfAbsent(normalize(value), k -> ConcurrentHashMap.newKeySet()).add(uid);
+      }
+   }
+
+   /**
+    * Find the first top-level equality term: { "attr": "value" }, {
+    * "attr": { "$eq": "value" } } or one of those inside "$and"
+    *
+    * @param filter Document rendered MongoDB filter
+    * @return Map.Entry attribute / value, null if there is not one
+    */
+   private static Map.Entry<String, Object> getEqualityTerm(final Document filter) {
+      Object value = null;
+      Map.Entry<String, Object> term = null;
+
+      for (Map.Entry<String, Object> entry : filter.entrySet()) {
+         if (OPER_AND.equals(entry.getKey())) {
+            for (Object o : (List<?>) entry.getValue()) {
+               term = getEqualityTerm((Document) o);
+               if (term != null) {
+                  return term;
+               }
+            }
+         } else if (!entry.getKey().startsWith("$")) {
+            value = entry.getValue();
+            if (value instanceof Document) {
+               if (((Document) value).size() == 1 && ((Document) value).get(OPER_EQ) != null) {
+                  return Map.entry(entry.getKey(), ((Document) value).get(OPER_EQ));
+               }
+            } else if (value != null) {
+               return Map.entry(entry.getKey(), value);
+            }
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * Check if a document matches the filter, using MongoDB equality semantics
+    * (array attributes match if any element is equal)
+    *
+    * @param doc Document to test
+    * @param filter Document rendered MongoDB filter
+    * @return boolean true if the document matches
+    * @throws Exception unsupported filter operator
+    */
+   static boolean matches(final Document doc, final Document filter) throws Exception {
+      boolean any = false;
+
+      for (Map.Entry<String, Object> entry : filter.entrySet()) {
+         if (OPER_AND.equals(entry.getKey())) {
+            for (Object o : (List<?>) entry.getValue()) {
+               if (!matches(doc, (Document) o)) {
+                  return false;
+               }
+            }
+         } else if (OPER_OR.equals(entry.getKey())) {
+            any = false;
+            for (Object o : (List<?>) entry.getValue()) {
+               if (matches(doc, (Document) o)) {
+                  any = true;
+                  break;
+               }
+            }
+            if (!any) {
+               return false;
+            }
+         } else if (entry.getKey().startsWith("$")) {
+            throw new Exception("Unsupported query operator '" + entry.getKey() + "'");
+         } else if (isOperators(entry.getValue())) {
+            if (!matchesOperators(getValues(doc, entry.getKey()), (Document) entry.getValue())) {
+               return false;
+            }
+         } else if (!containsValue(getValues(doc, entry.getKey()), entry.getValue())) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Check if the values of an attribute match all the operators of its
+    * filter: { "$gt": 1, "$lte": 5 }
+    *
+    * @param values List of values, see getValues()
+    * @param operators Document operators and their operands
+    * @return boolean true if all the operators match
+    * @throws Exception unsupported filter operator
+    */
+   private static boolean matchesOperators(final List<Object> values, final Document operators)
+      throws Exception {
+      boolean match = false;
+      Object operand = null;
+
+      for (Map.Entry<String, Object> entry : operators.entrySet()) {
+         operand = entry.getValue();
+         switch (entry.getKey()) {
+            case OPER_EQ: {
+               match = containsValue(values, operand);
+               break;
+            }
+            case OPER_NE: {
+               match = !containsValue(values, operand);
+               break;
+            }
+            case OPER_IN: {
+               match = false;
+               for (Object o : (List<?>) operand) {
+                  if (containsValue(values, o)) {
+                     match = true;
+                     break;
+                  }
+               }
+               break;
+            }
+            case OPER_GT:
+            case OPER_GTE:
+            case OPER_LT:
+            case OPER_LTE: {
+               match = containsInRange(values, entry.getKey(), operand);
+               break;
+            }
+            case OPER_EXISTS: {
+               match = values.isEmpty() != Boolean.TRUE.equals(operand);
+               break;
+            }
+            case OPER_NOT: {
+               if (!(operand instanceof Document)) {
+                  throw new Exception("Query operator '" + OPER_NOT + "' needs operators");
+               }
+               match = !matchesOperators(values, (Document) operand);
+               break;
+            }
+            default: {
+               throw new Exception("Unsupported query operator '" + entry.getKey() + "'");
+            }
+         }
+         if (!match) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * A filter value is operators if its first key is an operator, else it is
+    * an embedded document that must be equal
+    */
+   private static boolean isOperators(final Object value) {
+      return value instanceof Document && !((Document) value).isEmpty()
+         && ((Document) value).keySet().iterator().next().startsWith("$");
+   }
+
+   private static boolean containsInRange(final List<Object> values, final String operator,
+      final Object bound) {
+      Integer diff = null;
+
+      for (Object value : values) {
+         diff = compare(value, bound);
+         if (diff != null && (OPER_GT.equals(operator) ? diff > 0
+            : OPER_GTE.equals(operator) ? diff >= 0
+            : OPER_LT.equals(operator) ? diff < 0 : diff <= 0)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Compare a value with the bound of a range
+    *
+    * @return Integer, null if the value and the bound are not comparable
+    */
+   @SuppressWarnings("unchecked")
+   private static Integer compare(final Object value, final Object bound) {
+      if (value instanceof Number && bound instanceof Number) {
+         return Double.compare(((Number) value).doubleValue(), ((Number) bound).doubleValue());
+      }
+      if (value instanceof Comparable && bound != null && value.getClass() == bound.getClass()) {
+         return ((Comparable<Object>) value).compareTo(bound);
+      }
+      return null;
+   }
+
+   private static boolean containsValue(final List<Object> values, final Object expected) {
+      for (Object value : values) {
+         if (normalize(value).equals(normalize(expected))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Get all the values for an attribute (dot notation), traversing arrays.
+    * An array value contributes both itself and its elements.
+    *
+    * @param doc Document
+    * @param attr String attribute name (dot notation)
+    * @return List of values
+    */
+   static List<Object> getValues(final Document doc, final String attr) {
+      List<Object> values = new LinkedList<>();
+
+      collectValues(doc, attr.split("\\."), 0, values);
+
+      return values;
+   }
+
+   private static void collectValues(final Object node, final String[] path, final int pos,
+      final List<Object> values) {
+      if (node == null) {
+         return;
+      }
+      if (pos == path.length) {
+         values.add(node);
+         if (node instanceof List) {
+            values.addAll((List<?>) node);
+         }
+      } else if (node instanceof Document) {
+         collectValues(((Document) node).get(path[pos]), path, pos + 1, values);
+      } else if (node instanceof List) {
+         for (Object o : (List<?>) node) {
+            collectValues(o, path, pos, values);
+         }
+      }
+   }
+
+   /**
+    * Numbers compare by value regardless of type, same as MongoDB
+    */
+   private static Object normalize(final Object value) {
+      if (value instanceof Number) {
+         return ((Number) value).doubleValue();
+      }
+      return value == null ? NULL_VALUE : value;
+   }
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.common.CoreIF;
+import com.forgerock.frdp.dao.DataAccess;
+import com.forgerock.frdp.dao.Operation;
+import com.forgerock.frdp.dao.OperationIF;
+import com.forgerock.frdp.utils.JSON;
+import com.forgerock.frdp.utils.STR;
+import com.mongodb.MongoClientSettings;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ *
+ * In-memory implementation of the DataAccess interface with the same semantics
+ * as MongoDataAccess: "uid" uniqueness, the "timestamps" block, the output
+ * states (SUCCESS, ERROR, NOTEXIST, FAILED) and the query operators from
+ * MongoDataAccess.getQueryFromJSON(). It does not need a MongoDB server and
+ * is intended for tests and local benchmarking.
+ *
+ * Every operation must set the "database" and "collection" params, same as
+ * MongoDataAccess. No connection params are needed. Data is not persisted.
+ *
+ * Features of MongoDataAccess that need the server are not implemented, see
+ * isSupported(): their params and attributes are ignored and a "text" query
+ * fails the SEARCH.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class MemoryDataAccess extends DataAccess {
+
+   private static final String _ID = "_id";
+   private static final Set<String> UNSUPPORTED = Set.of(
+      MongoDataAccess.PARAM_PARTITION_COUNT,
+      MongoDataAccess.PARAM_SESSIONS_ENABLED,
+      MongoDataAccess.PARAM_SPILL_THRESHOLD,
+      MongoDataAccess.PARTITIONS,
+      MongoDataAccess.OPERATOR_TEXT);
+   private final String CLASS = this.getClass().getName();
+
+   private final Map<String, MemoryCollection> _collections = new ConcurrentHashMap<>();
+
+   public MemoryDataAccess() {
+      super();
+
+      String METHOD = "MemoryDataAccess()";
+
+      _logger.entering(CLASS, METHOD);
+
+      _logger.exiting(CLASS, METHOD);
+
+      return;
+   }
+
+   /**
+    * Do not allow the copying an instance of this class
+    * @return
+    */
+   @Override
+   public CoreIF copy() {
+      throw new UnsupportedOperationException("Not supported yet.");
+   }
+
+   /**
+    * Implement close interface, release all the collections
+    */
+   @Override
+   public void close() {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+
+      _logger.entering(CLASS, METHOD);
+
+      _collections.clear();
+
+      _logger.exiting(CLASS, METHOD);
+
+      return;
+   }
+
+   /**
+    * Same as MongoDataAccess.start(), there is nothing to warm up
+    *
+    * @return CompletableFuture completed with true
+    */
+   public CompletableFuture<Boolean> start() {
+      this.init();
+      return CompletableFuture.completedFuture(true);
+   }
+
+   /**
+    * Same as MongoDataAccess.isReady()
+    *
+    * @return boolean true, once initialized
+    */
+   public boolean isReady() {
+      return this.getState() == STATE.READY;
+   }
+
+   /**
+    * Check if a feature of MongoDataAccess is implemented by this engine, the
+    * feature is its param or SEARCH attribute / operator:
+    *
+    * <pre>
+    * partition.count         no, documents are not partitioned
+    * sessions.enabled        no, there is no session token
+    * spill.threshold.bytes   no, the "data" is not spilled
+    * partitions              no, a SEARCH is not read in parallel
+    * text                    no, there is no text index
+    * </pre>
+    *
+    * @param feature String param, SEARCH attribute or query operator
+    * @return boolean true if the feature has the same behavior as
+    * MongoDataAccess
+    */
+   public boolean isSupported(final String feature) {
+      return !UNSUPPORTED.contains(feature);
+   }
+
+   /**
+    * Execute the input operation, returns output operation
+    *
+    * @param operInput OperationIF input data
+    * @return OperationIF output data
+    */
+   @Override
+   public final OperationIF execute(final OperationIF operInput) {
+      boolean error = false;
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      StringBuilder msg = new StringBuilder(CLASS + ":" + METHOD + ": ");
+      OperationIF operOutput = null;
+      MemoryCollection collection = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      try {
+         this.init();
+         this.validate(operInput);
+         collection = this.getCollection(
+            operInput.getParamNotEmpty(MongoDataAccess.PARAM_DATABASE),
+            operInput.getParamNotEmpty(MongoDataAccess.PARAM_COLLECTION));
+      } catch (Exception ex) {
+         error = true;
+         msg.append(ex.getMessage());
+         if (operInput == null) {
+            operOutput = new Operation(OperationIF.TYPE.NULL);
+         } else {
+            operOutput = new Operation(operInput.getType());
+         }
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(msg.toString());
+      }
+
+      if (!error && !STR.isEmpty(operInput.getParam(MongoDataAccess.PARAM_OPERATION))) {
+         switch (operInput.getParam(MongoDataAccess.PARAM_OPERATION)) {
+            case MongoDataAccess.OPERATION_PATCH: {
+               operOutput = this.patch(operInput, collection);
+               break;
+            }
+            case MongoDataAccess.OPERATION_AGGREGATE: {
+               operOutput = this.aggregate(operInput, collection);
+               break;
+            }
+            case MongoDataAccess.OPERATION_DISTINCT: {
+               operOutput = this.distinct(operInput, collection);
+               break;
+            }
+            default: {
+               error = true;
+               msg.append("Unsupported operation '")
+                  .append(operInput.getParam(MongoDataAccess.PARAM_OPERATION))
+                  .append("'");
+               operOutput = new Operation(operInput.getType());
+               operOutput.setError(true);
+               operOutput.setState(STATE.FAILED);
+               operOutput.setStatus(msg.toString());
+               break;
+            }
+         }
+      } else if (!error) {
+         switch (operInput.getType()) {
+            case CREATE: {
+               operOutput = this.create(operInput, collection);
+               break;
+            }
+            case READ: {
+               operOutput = this.read(operInput, collection);
+               break;
+            }
+            case REPLACE: {
+               operOutput = this.replace(operInput, collection);
+               break;
+            }
+            case DELETE: {
+               operOutput = this.delete(operInput, collection);
+               break;
+            }
+            case SEARCH: {
+               operOutput = this.search(operInput, collection);
+               break;
+            }
+            default: {
+               error = true;
+               msg.append("Unsupported operation '")
+                  .append(operInput.getType().toString())
+                  .append("'");
+               operOutput = new Operation(operInput.getType());
+               operOutput.setError(true);
+               operOutput.setState(STATE.FAILED);
+               operOutput.setStatus(msg.toString());
+               break;
+            }
+         }
+      }
+
+      if (error) {
+         _logger.log(Level.WARNING,
+            operOutput == null ? "dataOutput is null" : operOutput.getStatus());
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Create document from input, see MongoDataAccess.create()
+    *
+    * @param operInput OperatinIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF create(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      String uid = null;
+      OperationIF operOutput = null;
+      JSONObject jsonInput = null;
+      JSONObject jsonOutput = null;
+      JSONObject jsonData = null;
+      Document doc = null;
+      Document tstamps = null;
+      Date expires = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+      jsonOutput = new JSONObject();
+
+      jsonInput = operInput.getJSON();
+
+      jsonData = JSON.getObject(jsonInput, ConstantsIF.DATA);
+
+      uid = JSON.getString(jsonInput, ConstantsIF.UID);
+
+      if (STR.isEmpty(uid)) {
+         uid = UUID.randomUUID().toString();
+      }
+
+      tstamps = new Document();
+      tstamps.put(ConstantsIF.CREATED, new Date());
+
+      doc = new Document();
+      try {
+         doc.put(ConstantsIF.DATA, Document.parse(jsonData.toString()));
+         expires = Timestamps.getExpires(jsonInput);
+         if (expires != null) {
+            tstamps.put(MongoDataAccess.EXPIRES, expires);
+         }
+      } catch (Exception ex) {
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(CLASS + ":" + METHOD + ": " + ex.getMessage());
+      }
+      doc.put(_ID, new ObjectId());
+      doc.put(ConstantsIF.UID, uid);
+      doc.put(ConstantsIF.TIMESTAMPS, tstamps);
+      doc.put(MongoDataAccess.VERSION, 1L);
+
+      if (Timestamps.isExpired(collection.get(uid))) {
+         collection.remove(uid); // there is no TTL monitor
+      }
+
+      if (!operOutput.isError() && !collection.insert(uid, doc)) {
+         operOutput.setError(true);
+         operOutput.setState(STATE.ERROR);
+         operOutput.setStatus("Document already exists: uid='" + uid + "'");
+      }
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      } else {
+         operOutput.setState(STATE.SUCCESS);
+         operOutput.setStatus("Created document");
+         jsonOutput.put(ConstantsIF.UID, uid);
+      }
+
+      operOutput.setJSON(jsonOutput);
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Read document for specified identifier, see MongoDataAccess.read()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF read(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      String uid = null;
+      OperationIF operOutput = null;
+      JSONObject jsonOutput = null;
+      Document doc = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+
+      uid = JSON.getString(operInput.getJSON(), ConstantsIF.UID);
+
+      doc = collection.get(uid);
+
+      if (Timestamps.isExpired(doc)) {
+         doc = null;
+      }
+
+      if (doc != null) {
+         jsonOutput = this.getJSONFromDocument(doc, true);
+         operOutput.setState(STATE.SUCCESS);
+         operOutput.setStatus("Found document");
+      } else {
+         jsonOutput = new JSONObject();
+         operOutput.setError(true);
+         operOutput.setState(STATE.NOTEXIST);
+         operOutput.setStatus("Document does not exist: uid='" + uid + "'");
+      }
+
+      operOutput.setJSON(jsonOutput);
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Replace document for the specified identifier, see
+    * MongoDataAccess.replace()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF replace(final OperationIF operInput, final MemoryCollection collection) {
+      JSONObject jsonData = JSON.getObject(operInput.getJSON(), ConstantsIF.DATA);
+
+      return this.update(operInput, collection, "Replaced document", data -> {
+         return Document.parse(jsonData.toString());
+      }, new JSONObject());
+   }
+
+   /**
+    * Patch document for the specified identifier, see MongoDataAccess.patch()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF patch(final OperationIF operInput, final MemoryCollection collection) {
+      JSONObject jsonOutput = new JSONObject();
+      JSONObject jsonData = JSON.getObject(operInput.getJSON(), ConstantsIF.DATA);
+      JSONArray jsonRemove = JSON.getArray(operInput.getJSON(), MongoDataAccess.REMOVE);
+
+      return this.update(operInput, collection, "Patched document", data -> {
+         Document patched = Document.parse(data.toJson());
+
+         MongoDataAccess.getUpdatesFromPatch(jsonData, jsonRemove); // validate
+
+         if (jsonData != null) {
+            for (Object key : jsonData.keySet()) {
+               setPath(patched, key.toString(), jsonData.get(key) instanceof JSONObject
+                  ? Document.parse(((JSONObject) jsonData.get(key)).toJSONString())
+                  : jsonData.get(key));
+            }
+         }
+         if (jsonRemove != null) {
+            for (Object key : jsonRemove) {
+               setPath(patched, key.toString(), null);
+            }
+         }
+
+         // "timestamps.updated" always changes, a matched document is modified
+         jsonOutput.put(MongoDataAccess.MATCHED, 1L);
+         jsonOutput.put(MongoDataAccess.MODIFIED, 1L);
+
+         return patched;
+      }, jsonOutput);
+   }
+
+   /**
+    * Update the "data" of a document, the "timestamps.updated" and the
+    * "version", checks the optional expected "version" of the input
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @param success String status for success
+    * @param function DataFunction new "data" from current "data"
+    * @param jsonOutput JSONObject output
+    * @return OperationIF output data
+    */
+   private OperationIF update(final OperationIF operInput, final MemoryCollection collection,
+      final String success, final DataFunction function, final JSONObject jsonOutput) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      String uid = null;
+      Long version = null;
+      OperationIF operOutput = null;
+      Document previous = null;
+      Document[] updated = new Document[1];
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+
+      uid = JSON.getString(operInput.getJSON(), ConstantsIF.UID);
+
+      try {
+         if (STR.isEmpty(uid)) {
+            throw new Exception("Attribute '" + ConstantsIF.UID + "' is empty");
+         }
+
+         version = MongoDataAccess.getExpectedVersion(operInput.getJSON());
+
+         final Long expected = version;
+         final Date expires = Timestamps.getExpires(operInput.getJSON());
+
+         previous = collection.update(uid, current -> {
+            Document doc = null;
+            Document tstamps = null;
+
+            if (expected != null && MongoDataAccess.getVersion(current) != expected) {
+               return null; // conflict
+            }
+
+            doc = new Document(current);
+            tstamps = new Document(doc.get(ConstantsIF.TIMESTAMPS, Document.class));
+            tstamps.put(ConstantsIF.UPDATED, new Date());
+            if (expires != null) {
+               tstamps.put(MongoDataAccess.EXPIRES, expires);
+            }
+            doc.put(ConstantsIF.TIMESTAMPS, tstamps);
+            doc.put(ConstantsIF.DATA, function.apply(current.get(ConstantsIF.DATA, Document.class)));
+            doc.put(MongoDataAccess.VERSION, MongoDataAccess.getVersion(current) + 1);
+
+            updated[0] = doc;
+
+            return doc;
+         });
+      } catch (Exception ex) {
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(CLASS + ":" + METHOD + ": " + ex.getMessage());
+      }
+
+      if (!operOutput.isError()) {
+         if (previous == null) {
+            jsonOutput.clear();
+            if (operInput.getParam(MongoDataAccess.PARAM_OPERATION) != null) {
+               jsonOutput.put(MongoDataAccess.MATCHED, 0L);
+               jsonOutput.put(MongoDataAccess.MODIFIED, 0L);
+            }
+            operOutput.setState(STATE.NOTEXIST);
+            operOutput.setStatus("Document does not exist: uid='" + uid + "'");
+         } else if (updated[0] == null) {
+            jsonOutput.clear();
+            if (operInput.getParam(MongoDataAccess.PARAM_OPERATION) != null) {
+               jsonOutput.put(MongoDataAccess.MATCHED, 0L);
+               jsonOutput.put(MongoDataAccess.MODIFIED, 0L);
+            }
+            jsonOutput.put(MongoDataAccess.VERSION, MongoDataAccess.getVersion(previous));
+            operOutput.setError(true);
+            operOutput.setState(STATE.ERROR);
+            operOutput.setParam(MongoDataAccess.PARAM_OUTCOME, MongoDataAccess.OUTCOME_CONFLICT);
+            operOutput.setStatus("Version conflict: uid='" + uid + "', expected version="
+               + version + ", current version=" + MongoDataAccess.getVersion(previous));
+         } else {
+            if (version != null) {
+               jsonOutput.put(MongoDataAccess.VERSION, version + 1);
+            }
+            operOutput.setState(STATE.SUCCESS);
+            operOutput.setStatus(success);
+         }
+      }
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      }
+
+      operOutput.setJSON(jsonOutput);
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Delete document for the specified identifier, see
+    * MongoDataAccess.delete()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF delete(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      String uid = null;
+      OperationIF operOutput = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+
+      uid = JSON.getString(operInput.getJSON(), ConstantsIF.UID);
+
+      if (uid != null) {
+         collection.remove(uid);
+      }
+
+      operOutput.setState(STATE.SUCCESS);
+      operOutput.setStatus("Deleted document");
+      operOutput.setJSON(new JSONObject());
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Search documents matching the search criteria, see
+    * MongoDataAccess.search()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF search(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      OperationIF operOutput = null;
+      JSONObject jsonQuery = null;
+      JSONObject jsonOutput = null;
+      JSONArray jsonResults = null;
+      List<Document> docs = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+      jsonOutput = new JSONObject();
+      jsonResults = new JSONArray();
+
+      jsonQuery = JSON.getObject(operInput.getJSON(), ConstantsIF.QUERY);
+
+      try {
+         docs = collection.find(getFilterFromJSON(jsonQuery));
+      } catch (Exception ex) {
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(CLASS + ":" + METHOD + ": " + ex.getMessage());
+      }
+
+      if (!operOutput.isError()) {
+         for (Document doc : docs) {
+            if (!Timestamps.isExpired(doc)) {
+               jsonResults.add(this.getJSONFromDocument(doc, false));
+            }
+         }
+      }
+
+      jsonOutput.put(ConstantsIF.RESULTS, jsonResults);
+      jsonOutput.put(ConstantsIF.QUANTITY, jsonResults.size());
+
+      operOutput.setJSON(jsonOutput);
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      } else {
+         operOutput.setState(STATE.SUCCESS);
+         operOutput.setStatus("Documents Found: " + jsonResults.size());
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Run a restricted aggregation pipeline, see MongoDataAccess.aggregate().
+    * The stages are evaluated in memory by Aggregation.evaluate(), the
+    * "batchSize" and "allowDiskUse" attributes are ignored.
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF aggregate(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      OperationIF operOutput = null;
+      JSONObject jsonOutput = null;
+      JSONArray jsonResults = null;
+      JSONParser parser = null;
+      List<Document> pipeline = null;
+      List<Document> docs = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+      jsonOutput = new JSONObject();
+      jsonResults = new JSONArray();
+      parser = new JSONParser();
+
+      try {
+         pipeline = Aggregation.getPipeline(JSON.getArray(operInput.getJSON(), MongoDataAccess.PIPELINE));
+
+         docs = collection.find(new Document());
+         docs.removeIf(Timestamps::isExpired);
+
+         for (Document doc : Aggregation.evaluate(pipeline, docs)) {
+            jsonResults.add(parser.parse(doc.toJson()));
+         }
+      } catch (Exception ex) {
+         jsonResults.clear();
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(CLASS + ":" + METHOD + ": " + ex.getMessage());
+      }
+
+      jsonOutput.put(ConstantsIF.RESULTS, jsonResults);
+      jsonOutput.put(ConstantsIF.QUANTITY, jsonResults.size());
+
+      operOutput.setJSON(jsonOutput);
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      } else {
+         operOutput.setState(STATE.SUCCESS);
+         operOutput.setStatus("Aggregate results: " + jsonResults.size());
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Get the distinct values of an attribute, see MongoDataAccess.distinct()
+    *
+    * @param operInput OperationIF input data
+    * @param collection MemoryCollection
+    * @return OperationIF output data
+    */
+   private OperationIF distinct(final OperationIF operInput, final MemoryCollection collection) {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      String attr = null;
+      OperationIF operOutput = null;
+      JSONObject jsonQuery = null;
+      JSONObject jsonOutput = null;
+      JSONArray jsonResults = null;
+      Set<Object> values = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      operOutput = new Operation(operInput.getType());
+      jsonOutput = new JSONObject();
+      jsonResults = new JSONArray();
+
+      try {
+         attr = MongoDataAccess.getDistinctAttribute(operInput.getJSON());
+
+         jsonQuery = JSON.getObject(operInput.getJSON(), ConstantsIF.QUERY);
+
+         values = new LinkedHashSet<>();
+         for (Document doc : collection.find(jsonQuery == null ? new Document() : getFilterFromJSON(jsonQuery))) {
+            if (!Timestamps.isExpired(doc)) {
+               for (Object value : MemoryCollection.getValues(doc, attr)) {
+                  if (!(value instanceof List)) {
+                     values.add(value);
+                  }
+               }
+            }
+         }
+
+         jsonResults = (JSONArray) ((JSONObject) new JSONParser().parse(
+            new Document(ConstantsIF.RESULTS, new ArrayList<>(values)).toJson())).get(ConstantsIF.RESULTS);
+      } catch (Exception ex) {
+         jsonResults = new JSONArray();
+         operOutput.setError(true);
+         operOutput.setState(STATE.FAILED);
+         operOutput.setStatus(CLASS + ":" + METHOD + ": " + ex.getMessage());
+      }
+
+      jsonOutput.put(ConstantsIF.RESULTS, jsonResults);
+      jsonOutput.put(ConstantsIF.QUANTITY, jsonResults.size());
+
+      operOutput.setJSON(jsonOutput);
+
+      if (operOutput.isError()) {
+         _logger.log(Level.WARNING, operOutput.getStatus());
+      } else {
+         operOutput.setState(STATE.SUCCESS);
+         operOutput.setStatus("Distinct values: " + jsonResults.size());
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return operOutput;
+   }
+
+   /**
+    * Initialize class instance, there is no connection to create
+    */
+   private void init() {
+      if (this.getState() != STATE.READY) {
+         this.setState(STATE.READY);
+         this.setStatus("Initialization complete");
+      }
+      return;
+   }
+
+   /**
+    * Get the collection for the database, create it if it does not exist
+    *
+    * @param database String database name
+    * @param collection String collection name
+    * @return MemoryCollection
+    */
+   private MemoryCollection getCollection(final String database, final String collection) {
+      return _collections.computeIfAbsent(database + "/" + collection, k -> new MemoryCollection());
+   }
+
+   /**
+    * Build the MongoDB filter with MongoDataAccess.getQueryFromJSON() and render
+    * it as a Document for MemoryCollection
+    *
+    * @param json JSONObject query object
+    * @return Document filter
+    * @throws Exception
+    */
+   static Document getFilterFromJSON(final JSONObject json) throws Exception {
+      Bson query = MongoDataAccess.getQueryFromJSON(json);
+
+      return Document.parse(query.toBsonDocument(BsonDocument.class,
+         MongoClientSettings.getDefaultCodecRegistry()).toJson());
+   }
+
+   /**
+    * Create a JSON object from the Document, always includes "uid" and
+    * "data", the "timestamps" and "version" are only included for a read
+    *
+    * @param doc Document
+    * @param timestamps boolean include the timestamps
+    * @return JSONObject
+    */
+   private JSONObject getJSONFromDocument(final Document doc, final boolean timestamps) {
+      JSONParser parser = new JSONParser();
+      JSONObject jsonOutput = new JSONObject();
+
+      try {
+         jsonOutput.put(ConstantsIF.DATA,
+            parser.parse(doc.get(ConstantsIF.DATA, Document.class).toJson()));
+         jsonOutput.put(ConstantsIF.UID, doc.getString(ConstantsIF.UID));
+         if (timestamps) {
+            jsonOutput.put(ConstantsIF.TIMESTAMPS, Timestamps.toJSON(doc.get(ConstantsIF.TIMESTAMPS, Document.class),
+               Timestamps.isLegacy(this.getParam(MongoDataAccess.PARAM_TIMESTAMPS_FORMAT))));
+            jsonOutput.put(MongoDataAccess.VERSION, MongoDataAccess.getVersion(doc));
+         }
+      } catch (Exception ex) {
+         _logger.log(Level.WARNING, "Can not parse Document into JSON: " + ex.getMessage());
+         jsonOutput = new JSONObject();
+      }
+
+      return jsonOutput;
+   }
+
+   /**
+    * New "data" document from the current "data" document
+    */
+   @FunctionalInterface
+   private interface DataFunction {
+
+      Document apply(Document data) throws Exception;
+   }
+
+   /**
+    * Set ($set) or remove ($unset, null value) an attribute, dot notation,
+    * creating the intermediate documents
+    *
+    * @param doc Document
+    * @param path String attribute name
+    * @param value Object value, null to remove the attribute
+    */
+   private static void setPath(final Document doc, final String path, final Object value) {
+      int pos = path.indexOf('.');
+      String key = pos < 0 ? path : path.substring(0, pos);
+      Object child = null;
+
+      if (pos < 0) {
+         if (value == null) {
+            doc.remove(key);
+         } else {
+            doc.put(key, value);
+         }
+      } else {
+         child = doc.get(key);
+         if (!(child instanceof Document)) {
+            if (value == null) {
+               return;
+            }
+            child = new Document();
+            doc.put(key, child);
+         }
+         setPath((Document) child, path.substring(pos + 1), value);
+      }
+
+      return;
+   }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional binding of the DataAccessMetrics to a Micrometer MeterRegistry.
+ * Micrometer is an optional dependency, it must be on the classpath to use
+ * this class.
+ *
+ * <pre>
+ * new MicrometerMetricsBinder(dao.getMetrics()).bindTo(registry);
+ * </pre>
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class MicrometerMetricsBinder implements MeterBinder {
+
+   private static final String PREFIX = "frdp.dao.mongo.";
+   private final DataAccessMetrics _metrics;
+
+   public MicrometerMetricsBinder(final DataAccessMetrics metrics) {
+      _metrics = metrics;
+   }
+
+   @Override
+   public void bindTo(final MeterRegistry registry) {
+      ConnectionPoolMetrics pool = _metrics.getConnectionPoolMetrics();
+
+      Gauge.builder(PREFIX + "pool.size", pool, ConnectionPoolMetrics::getPoolSize)
+         .register(registry);
+      Gauge.builder(PREFIX + "pool.checkedout", pool, ConnectionPoolMetrics::getCheckedOut)
+         .register(registry);
+      Gauge.builder(PREFIX + "pool.waitqueue", pool, ConnectionPoolMetrics::getWaitQueueSize)
+         .register(registry);
+      Gauge.builder(PREFIX + "pool.wait.p99", pool, ConnectionPoolMetrics::getWaitTimeP99)
+         .baseUnit("microseconds").register(registry);
+
+      _metrics.addListener(metrics -> this.bindOperation(registry, metrics));
+
+      return;
+   }
+
+   private void bindOperation(final MeterRegistry registry, final OperationMetrics metrics) {
+      Tags tags = Tags.of("operation", metrics.getOperation(), "collection", metrics.getCollection());
+
+      FunctionTimer.builder(PREFIX + "operation", metrics,
+         OperationMetrics::getCount, OperationMetrics::getLatencyTotal, TimeUnit.MICROSECONDS)
+         .tags(tags).register(registry);
+
+      FunctionCounter.builder(PREFIX + "operation.outcome", metrics, OperationMetrics::getSuccessCount)
+         .tags(tags).tag("outcome", "success").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.outcome", metrics, OperationMetrics::getNotExistCount)
+         .tags(tags).tag("outcome", "notexist").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.outcome", metrics, OperationMetrics::getErrorCount)
+         .tags(tags).tag("outcome", "error").register(registry);
+
+      for (double percentile : new double[]{50.0, 99.0, 99.9}) {
+         Gauge.builder(PREFIX + "operation.latency", metrics, m -> m.getLatencyAtPercentile(percentile))
+            .tags(tags).tag("percentile", Double.toString(percentile / 100.0))
+            .baseUnit("microseconds").register(registry);
+      }
+
+      Gauge.builder(PREFIX + "operation.results.mean", metrics, OperationMetrics::getResultSizeMean)
+         .tags(tags).register(registry);
+      FunctionCounter.builder(PREFIX + "operation.bytes", metrics, OperationMetrics::getBytesConverted)
+         .tags(tags).baseUnit("bytes").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.wire.bytes", metrics, OperationMetrics::getBytesSent)
+         .tags(tags).tag("direction", "sent").baseUnit("bytes").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.wire.bytes", metrics, OperationMetrics::getBytesReceived)
+         .tags(tags).tag("direction", "received").baseUnit("bytes").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.coalesced", metrics, OperationMetrics::getCoalescedCount)
+         .tags(tags).register(registry);
+      FunctionCounter.builder(PREFIX + "operation.negative", metrics, OperationMetrics::getNegativeHitCount)
+         .tags(tags).tag("result", "hit").register(registry);
+      FunctionCounter.builder(PREFIX + "operation.negative", metrics, OperationMetrics::getNegativeMissCount)
+         .tags(tags).tag("result", "miss").register(registry);
+
+      return;
+   }
+}
@@ -10,13 +10,24 @@ import java.util.Map;
 
 /**
  * Factory class for getting singleton instance of MongoDB Data Access Object
+ *
+ * The optional "engine" param selects the implementation: "mongo" (default)
+ * for MongoDataAccess or "memory" for MemoryDataAccess
+ *
+ * If the "warmup" param is "true", start() is called on the new instance so it
+ * connects in the background, use isReady() as the readiness probe
  * 
  * @author Scott Fehrman, ForgeRock, Inc.
  */
 public class MongoFactory {
 
+   public static final String PARAM_ENGINE = "engine";
+   public static final String ENGINE_MONGO = "mongo";
+   public static final String ENGINE_MEMORY = "memory";
+
    private static DataAccessIF _instance = null;
    private static String _className = "com.forgerock.frdp.dao.mongo.MongoDataAccess";
+   private static String _memoryClassName = "com.forgerock.frdp.dao.mongo.MemoryDataAccess";
 
    /**
     * Disable default constructor, this class can not be initiated
@@ -33,6 +44,7 @@ public class MongoFactory {
     */
    public static synchronized DataAccessIF getInstance(final Map<String, String> params) throws Exception {
       ClassLoader loader = null;
+      String engine = null;
 
       if (_instance == null) {
          loader = Thread.currentThread().getContextClassLoader();
@@ -40,8 +52,24 @@ public class MongoFactory {
             loader = MongoFactory.class.getClassLoader();
          }
 
-         _instance = (MongoDataAccess) loader.loadClass(_className).newInstance();
+         engine = (params == null ? null : params.get(PARAM_ENGINE));
+
+         if (engine == null || engine.isEmpty() || engine.equalsIgnoreCase(ENGINE_MONGO)) {
+            _instance = (DataAccessIF) loader.loadClass(_className).newInstance();
+         } else if (engine.equalsIgnoreCase(ENGINE_MEMORY)) {
+            _instance = (DataAccessIF) loader.loadClass(_memoryClassName).newInstance();
+         } else {
+            throw new Exception("Unknown engine '" + engine + "'");
+         }
          _instance.setParams(params);
+
+         if (params != null && Boolean.parseBoolean(params.get(MongoDataAccess.PARAM_WARMUP))) {
+            if (_instance instanceof MongoDataAccess) {
+               ((MongoDataAccess) _instance).start();
+            } else if (_instance instanceof MemoryDataAccess) {
+               ((MemoryDataAccess) _instance).start();
+            }
+         }
       }
       return _instance;
    }
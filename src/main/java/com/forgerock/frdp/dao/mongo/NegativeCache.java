@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+
+/**
+ * Negative cache of the "uid" values of one collection, enabled with the
+ * "negcache.enabled" param. A READ for a "uid" that the cache knows is
+ * missing returns NOTEXIST without a call to the server.
+ *
+ * The cache has two parts:
+ *
+ * <pre>
+ * counting Bloom filter  all the "uid" values of the collection, seeded with a
+ *                        scan of the "uid" values on the first use, then
+ *                        maintained by create (before the insert) and delete
+ *                        (after the delete). A "uid" that is not in the filter
+ *                        does not exist. Sized with "negcache.expected" and
+ *                        "negcache.fpp".
+ * recently missed        "uid" values that a READ did not find, for
+ *                        "negcache.missed.ms" (0, the default, disables
+ *                        it), at most "negcache.missed.size" values
+ * </pre>
+ *
+ * The filter never reports a "uid" as missing when its document was written
+ * by a MongoDataAccess of this JVM with "negcache.enabled", before or after
+ * the seed. The recently missed part does not keep that guarantee: a READ
+ * that runs while the "uid" is being created can record it as missed, and
+ * hide the acknowledged document for "negcache.missed.ms". Documents
+ * written by other processes are not seen until the cache is seeded again
+ * (restart), do not enable the cache for collections that other processes
+ * write to.
+ *
+ * Counters are 4 bits and saturate at 15, a saturated counter is never
+ * decremented. Everything that can not be counted exactly (a delete during
+ * the seed, an insert that failed) is left in the filter: it can only add
+ * false positives, which are READs that go to the server.
+ *
+ * The cache is shared by all the MongoDataAccess instances of the JVM that
+ * use the same cluster and collection, the first one sets the sizes.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class NegativeCache {
+
+   private static final Map<String, NegativeCache> CACHES = new ConcurrentHashMap<>();
+   private static final int MAX_COUNT = 15;
+   private static final int SEED_BATCH_SIZE = 10000;
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final String _name;
+   private final int _size;
+   private final int _hashes;
+   private final AtomicIntegerArray _counters;
+   private final Map<String, Long> _missed;
+   private final long _missedMillis;
+   private final AtomicBoolean _seeding = new AtomicBoolean(false);
+   private volatile boolean _seeded = false;
+
+   private NegativeCache(final String name, final int expected, final double fpp,
+      final int missedSize, final long missedMillis) {
+      int n = Math.max(1, expected);
+      double p = Math.min(0.5, Math.max(1.0E-6, fpp));
+
+      _name = name;
+      _size = (int) Math.min(Integer.MAX_VALUE - 7,
+         Math.max(64, Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)))));
+      _hashes = (int) Math.max(1, Math.round((double) _size / n * Math.log(2)));
+      _counters = new AtomicIntegerArray((_size + 7) / 8); // 8 counters per int
+      _missedMillis = Math.max(0, missedMillis);
+      _missed = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            return this.size() > Math.max(1, missedSize);
+         }
+      };
+   }
+
+   /**
+    * Get the cache for the cluster and collection, create it if it does not
+    * exist
+    *
+    * @param key String "host:port/database.collection"
+    * @param expected int expected number of documents
+    * @param fpp double false positive probability at the expected size
+    * @param missedSize int maximum recently missed values
+    * @param missedMillis long time a missed value is kept, 0 to disable
+    * @return NegativeCache
+    */
+   static NegativeCache getInstance(final String key, final int expected, final double fpp,
+      final int missedSize, final long missedMillis) {
+      return CACHES.computeIfAbsent(key,
+         k -> new NegativeCache(key, expected, fpp, missedSize, missedMillis));
+   }
+
+   /**
+    * Get the cache for the cluster and collection
+    *
+    * @param key String "host:port/database.collection"
+    * @return NegativeCache, null if it does not exist
+    */
+   static NegativeCache get(final String key) {
+      return CACHES.get(key);
+   }
+
+   /**
+    * Start the seed of the filter on a daemon thread, if it is not seeded or
+    * being seeded. Until it is seeded only the recently missed values are used.
+    *
+    * @param dao MongoDataAccess, runs the scan with its retry policy
+    * @param collections List of MongoCollection, the partitions of the
+    * collection (see Partitioning)
+    */
+   void seed(final MongoDataAccess dao, final List<MongoCollection<Document>> collections) {
+      Thread thread = null;
+
+      if (_seeded || !_seeding.compareAndSet(false, true)) {
+         return;
+      }
+
+      thread = new Thread(() -> {
+         long start = System.currentTimeMillis();
+         long count = 0;
+
+         try {
+            count = dao.call(false, () -> {
+               long values = 0;
+
+               for (MongoCollection<Document> collection : collections) {
+                  for (Document doc : collection.find()
+                     .projection(Projections.include(ConstantsIF.UID))
+                     .batchSize(SEED_BATCH_SIZE)) {
+                     if (doc.get(ConstantsIF.UID) != null) {
+                        this.add(doc.get(ConstantsIF.UID).toString());
+                        values++;
+                     }
+                  }
+               }
+
+               return values; // a retried scan counts twice: false positives only
+            });
+            _seeded = true;
+            _logger.log(Level.INFO, "{0}: seeded {1} uids in {2}ms, {3} counters, {4} hashes",
+               new Object[]{_name, count, System.currentTimeMillis() - start, _size, _hashes});
+         } catch (Exception ex) {
+            _logger.log(Level.WARNING, "{0}: seed failed, retried on the next READ: {1}",
+               new Object[]{_name, ex.getMessage()});
+            _seeding.set(false);
+         }
+      }, CLASS + ":" + _name);
+
+      thread.setDaemon(true);
+      thread.start();
+
+      return;
+   }
+
+   boolean isSeeded() {
+      return _seeded;
+   }
+
+   /**
+    * Check if the "uid" is known to be missing
+    *
+    * @param uid String document identifier
+    * @return boolean true if the document does not exist
+    */
+   boolean isMissing(final String uid) {
+      Long missedAt = null;
+
+      if (uid == null) {
+         return false;
+      }
+
+      if (_seeded && !this.mightContain(uid)) {
+         return true;
+      }
+
+      if (_missedMillis > 0) {
+         synchronized (_missed) {
+            missedAt = _missed.get(uid);
+         }
+         return missedAt != null && System.currentTimeMillis() - missedAt < _missedMillis;
+      }
+
+      return false;
+   }
+
+   /**
+    * Record a "uid" that a READ did not find
+    *
+    * @param uid String document identifier
+    */
+   void recordMiss(final String uid) {
+      if (uid != null && _missedMillis > 0) {
+         synchronized (_missed) {
+            _missed.put(uid, System.currentTimeMillis());
+         }
+      }
+   }
+
+   /**
+    * Add a "uid", call it before the document is inserted
+    *
+    * @param uid String document identifier
+    */
+   void add(final String uid) {
+      long hash = 0;
+
+      if (uid == null) {
+         return;
+      }
+
+      synchronized (_missed) {
+         _missed.remove(uid);
+      }
+
+      hash = hash(uid);
+      for (int i = 0; i < _hashes; i++) {
+         this.increment(this.getIndex(hash, i));
+      }
+
+      return;
+   }
+
+   /**
+    * Remove a "uid", call it after the document is deleted. Ignored until the
+    * filter is seeded, the seed may not have counted it yet.
+    *
+    * @param uid String document identifier
+    */
+   void remove(final String uid) {
+      long hash = 0;
+
+      if (uid == null || !_seeded) {
+         return;
+      }
+
+      hash = hash(uid);
+      for (int i = 0; i < _hashes; i++) {
+         this.decrement(this.getIndex(hash, i));
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private boolean mightContain(final String uid) {
+      long hash = hash(uid);
+
+      for (int i = 0; i < _hashes; i++) {
+         if (this.getCount(this.getIndex(hash, i)) == 0) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * Double hashing: index i = h1 + i * h2, from the two halves of a 64 bit
+    * hash
+    */
+   private int getIndex(final long hash, final int i) {
+      int h1 = (int) hash;
+      int h2 = (int) (hash >>> 32) | 1;
+
+      return ((h1 + i * h2) & Integer.MAX_VALUE) % _size;
+   }
+
+   private int getCount(final int index) {
+      return (_counters.get(index >>> 3) >>> ((index & 7) << 2)) & MAX_COUNT;
+   }
+
+   private void increment(final int index) {
+      int word = index >>> 3;
+      int shift = (index & 7) << 2;
+      int value = 0;
+
+      do {
+         value = _counters.get(word);
+         if (((value >>> shift) & MAX_COUNT) == MAX_COUNT) {
+            return; // saturated
+         }
+      } while (!_counters.compareAndSet(word, value, value + (1 << shift)));
+   }
+
+   private void decrement(final int index) {
+      int word = index >>> 3;
+      int shift = (index & 7) << 2;
+      int value = 0;
+      int count = 0;
+
+      do {
+         value = _counters.get(word);
+         count = (value >>> shift) & MAX_COUNT;
+         if (count == 0 || count == MAX_COUNT) {
+            return; // empty or saturated
+         }
+      } while (!_counters.compareAndSet(word, value, value - (1 << shift)));
+   }
+
+   /**
+    * FNV-1a over the characters, then the MurmurHash3 finalizer
+    */
+   private static long hash(final String value) {
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = 0; i < value.length(); i++) {
+         hash ^= value.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb93fe53e4b1aL;
+      hash ^= hash >>> 33;
+
+      return hash;
+   }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics for one operation type (CREATE, READ, ...) on one collection:
+ * latency histogram, outcome counters, SEARCH result sizes, the number of
+ * bytes converted between JSON and BSON Documents and the number of bytes
+ * sent to and received from the server (see WireMetrics). Operations that
+ * were coalesced with an identical operation in flight (see Coalescer) are
+ * counted with their own latency and outcome, and as coalesced. READs of a
+ * "uid" that does not exist are counted as negative cache hits (answered by
+ * the NegativeCache) or misses (answered by the server).
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+   /**
+    * Outcome of an operation
+    */
+   public static enum OUTCOME {
+      SUCCESS, NOTEXIST, ERROR
+   }
+
+   private final String _operation;
+   private final String _collection;
+   private final Histogram _latency = new Histogram();
+   private final Histogram _resultSize = new Histogram();
+   private final LongAdder _success = new LongAdder();
+   private final LongAdder _notExist = new LongAdder();
+   private final LongAdder _error = new LongAdder();
+   private final LongAdder _bytes = new LongAdder();
+   private final LongAdder _bytesSent = new LongAdder();
+   private final LongAdder _bytesReceived = new LongAdder();
+   private final LongAdder _coalesced = new LongAdder();
+   private final LongAdder _negativeHits = new LongAdder();
+   private final LongAdder _negativeMisses = new LongAdder();
+
+   OperationMetrics(final String operation, final String collection) {
+      _operation = operation;
+      _collection = collection;
+   }
+
+   /**
+    * Record a completed operation
+    *
+    * @param nanos long elapsed time in nanoseconds
+    * @param outcome OUTCOME of the operation
+    */
+   void record(final long nanos, final OUTCOME outcome) {
+      _latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+
+      switch (outcome) {
+         case SUCCESS: {
+            _success.increment();
+            break;
+         }
+         case NOTEXIST: {
+            _notExist.increment();
+            break;
+         }
+         default: {
+            _error.increment();
+            break;
+         }
+      }
+
+      return;
+   }
+
+   /**
+    * Record the number of documents returned by a SEARCH
+    *
+    * @param size long number of results
+    */
+   void recordResultSize(final long size) {
+      _resultSize.record(size);
+   }
+
+   /**
+    * Record the number of bytes converted between JSON and Documents
+    *
+    * @param bytes long number of bytes
+    */
+   void recordBytes(final long bytes) {
+      _bytes.add(bytes);
+   }
+
+   /**
+    * Record the number of bytes sent to and received from the server
+    *
+    * @param sent long bytes sent
+    * @param received long bytes received
+    */
+   void recordWireBytes(final long sent, final long received) {
+      _bytesSent.add(sent);
+      _bytesReceived.add(received);
+   }
+
+   /**
+    * Record an operation that got the output of an identical operation
+    */
+   void recordCoalesced() {
+      _coalesced.increment();
+   }
+
+   /**
+    * Record a READ of a "uid" that does not exist, with the NegativeCache
+    *
+    * @param hit boolean true if the cache answered, false if the server did
+    */
+   void recordNegative(final boolean hit) {
+      if (hit) {
+         _negativeHits.increment();
+      } else {
+         _negativeMisses.increment();
+      }
+   }
+
+   @Override
+   public String getOperation() {
+      return _operation;
+   }
+
+   @Override
+   public String getCollection() {
+      return _collection;
+   }
+
+   @Override
+   public long getCount() {
+      return _latency.getCount();
+   }
+
+   @Override
+   public long getSuccessCount() {
+      return _success.sum();
+   }
+
+   @Override
+   public long getErrorCount() {
+      return _error.sum();
+   }
+
+   @Override
+   public long getNotExistCount() {
+      return _notExist.sum();
+   }
+
+   @Override
+   public double getLatencyMean() {
+      return _latency.getMean();
+   }
+
+   @Override
+   public long getLatencyMax() {
+      return _latency.getMax();
+   }
+
+   @Override
+   public long getLatencyP50() {
+      return _latency.getValueAtPercentile(50.0);
+   }
+
+   @Override
+   public long getLatencyP99() {
+      return _latency.getValueAtPercentile(99.0);
+   }
+
+   @Override
+   public long getLatencyP999() {
+      return _latency.getValueAtPercentile(99.9);
+   }
+
+   /**
+    * Get the latency, in microseconds, at any percentile
+    *
+    * @param percentile double 0.0 - 100.0
+    * @return long latency in microseconds
+    */
+   public long getLatencyAtPercentile(final double percentile) {
+      return _latency.getValueAtPercentile(percentile);
+   }
+
+   /**
+    * Get the total latency, in microseconds, of all the operations
+    *
+    * @return long total latency in microseconds
+    */
+   public long getLatencyTotal() {
+      return _latency.getSum();
+   }
+
+   @Override
+   public double getResultSizeMean() {
+      return _resultSize.getMean();
+   }
+
+   @Override
+   public long getResultSizeMax() {
+      return _resultSize.getMax();
+   }
+
+   @Override
+   public long getBytesConverted() {
+      return _bytes.sum();
+   }
+
+   @Override
+   public long getBytesSent() {
+      return _bytesSent.sum();
+   }
+
+   @Override
+   public long getBytesReceived() {
+      return _bytesReceived.sum();
+   }
+
+   @Override
+   public long getCoalescedCount() {
+      return _coalesced.sum();
+   }
+
+   @Override
+   public double getDedupRatio() {
+      long count = this.getCount();
+
+      return count == 0 ? 0.0 : (double) _coalesced.sum() / count;
+   }
+
+   @Override
+   public long getNegativeHitCount() {
+      return _negativeHits.sum();
+   }
+
+   @Override
+   public long getNegativeMissCount() {
+      return _negativeMisses.sum();
+   }
+
+   @Override
+   public double getNegativeHitRatio() {
+      long hits = _negativeHits.sum();
+      long count = hits + _negativeMisses.sum();
+
+      return count == 0 ? 0.0 : (double) hits / count;
+   }
+
+   @Override
+   public void reset() {
+      _latency.reset();
+      _resultSize.reset();
+      _success.reset();
+      _notExist.reset();
+      _error.reset();
+      _bytes.reset();
+      _bytesSent.reset();
+      _bytesReceived.reset();
+      _coalesced.reset();
+      _negativeHits.reset();
+      _negativeMisses.reset();
+   }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+/**
+ * JMX interface for the metrics of one operation type on one collection.
+ * Latency values are in microseconds.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public interface OperationMetricsMBean {
+
+   String getOperation();
+
+   String getCollection();
+
+   long getCount();
+
+   long getSuccessCount();
+
+   long getErrorCount();
+
+   long getNotExistCount();
+
+   double getLatencyMean();
+
+   long getLatencyMax();
+
+   long getLatencyP50();
+
+   long getLatencyP99();
+
+   long getLatencyP999();
+
+   double getResultSizeMean();
+
+   long getResultSizeMax();
+
+   long getBytesConverted();
+
+   long getBytesSent();
+
+   long getBytesReceived();
+
+   long getCoalescedCount();
+
+   double getDedupRatio();
+
+   long getNegativeHitCount();
+
+   long getNegativeMissCount();
+
+   double getNegativeHitRatio();
+
+   void reset();
+}
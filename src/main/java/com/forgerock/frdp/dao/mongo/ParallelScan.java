@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+/**
+ * Parallel scan of a collection. The "_id" range is split into partitions,
+ * each partition is read by its own cursor on its own thread and the
+ * documents are merged into one consumer, called on the thread that runs
+ * scan(). The "_id" range of each physical collection of a partitioned
+ * collection (see Partitioning) is split on its own. Only "concurrency"
+ * partitions are read at the same time and the merge queue is bounded, so a
+ * slow consumer slows the cursors down.
+ *
+ * The split points come from:
+ *
+ * <pre>
+ * sample  $sample of the "_id" values, partitions of about the same size (default)
+ * time    equal time ranges between the first and the last ObjectId
+ * </pre>
+ *
+ * Both split the ObjectId "_id" values (the default for MongoDataAccess),
+ * the documents with other "_id" values are read as one more partition:
+ *
+ * <pre>
+ * { "_id": { "$not": { "$type": "objectId" } } }
+ * </pre>
+ *
+ * Each partition is read in "_id" order. A transient error is retried (see
+ * MongoDataAccess.call()) from the last "_id" read, or, when the partition
+ * mixes "_id" types, by skipping the documents already read. Documents are
+ * never passed twice to the consumer.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class ParallelScan {
+
+   public static final String SPLIT_SAMPLE = "sample";
+   public static final String SPLIT_TIME = "time";
+   private static final String _ID = "_id";
+   private static final int OVERSAMPLE = 16;
+   private static final Document END = new Document();
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final MongoDataAccess _dao;
+   private final List<MongoCollection<Document>> _collections;
+   private final Bson _filter;
+   private int _partitions = 4;
+   private int _concurrency = 4;
+   private int _batchSize = 1000;
+   private int _queueSize = 4096;
+   private String _split = SPLIT_SAMPLE;
+
+   /**
+    * Create a scan, use MongoDataAccess.getParallelScan()
+    *
+    * @param dao MongoDataAccess, runs the cursors with its retry policy
+    * @param collections List of MongoCollection, the physical collections
+    * @param filter Bson filter applied to every partition
+    */
+   ParallelScan(final MongoDataAccess dao, final List<MongoCollection<Document>> collections,
+      final Bson filter) {
+      _dao = dao;
+      _collections = collections;
+      _filter = filter;
+   }
+
+   /**
+    * Number of "_id" ranges of each physical collection, default 4
+    *
+    * @param partitions int
+    */
+   public void setPartitions(final int partitions) {
+      _partitions = Math.max(1, partitions);
+   }
+
+   /**
+    * Partitions read at the same time, default 4
+    *
+    * @param concurrency int
+    */
+   public void setConcurrency(final int concurrency) {
+      _concurrency = Math.max(1, concurrency);
+   }
+
+   /**
+    * Documents per cursor batch, default 1000
+    *
+    * @param batchSize int
+    */
+   public void setBatchSize(final int batchSize) {
+      _batchSize = Math.max(1, batchSize);
+   }
+
+   /**
+    * Documents waiting for the consumer, default 4096
+    *
+    * @param queueSize int
+    */
+   public void setQueueSize(final int queueSize) {
+      _queueSize = Math.max(1, queueSize);
+   }
+
+   /**
+    * How the split points are found: "sample" (default) or "time"
+    *
+    * @param split String, null for the default
+    * @throws Exception unknown value
+    */
+   public void setSplit(final String split) throws Exception {
+      if (split == null || split.isEmpty()) {
+         _split = SPLIT_SAMPLE;
+      } else if (SPLIT_SAMPLE.equalsIgnoreCase(split) || SPLIT_TIME.equalsIgnoreCase(split)) {
+         _split = split.toLowerCase();
+      } else {
+         throw new Exception("Unsupported split '" + split + "', use '"
+            + SPLIT_SAMPLE + "' or '" + SPLIT_TIME + "'");
+      }
+   }
+
+   /**
+    * Get the split points of each physical collection, the partition n
+    * covers the "_id" values from split n-1 (included) to split n (excluded)
+    *
+    * @return List of List of ObjectId, one per physical collection, sorted,
+    * empty for one partition
+    * @throws Exception
+    */
+   public List<List<ObjectId>> getSplitPoints() throws Exception {
+      List<List<ObjectId>> splits = new ArrayList<>(_collections.size());
+
+      for (MongoCollection<Document> collection : _collections) {
+         splits.add(this.getSplitPoints(collection));
+      }
+
+      return splits;
+   }
+
+   /**
+    * Read all the documents that match the filter
+    *
+    * @param consumer Consumer of the documents, called on this thread
+    * @return long number of documents
+    * @throws Exception a partition failed, the other partitions are stopped
+    */
+   public long scan(final Consumer<Document> consumer) throws Exception {
+      String METHOD = Thread.currentThread().getStackTrace()[1].getMethodName();
+      int ended = 0;
+      long count = 0;
+      List<ObjectId> splits = null;
+      List<Range> ranges = new ArrayList<>();
+      BlockingQueue<Document> queue = null;
+      AtomicReference<Exception> failure = new AtomicReference<>();
+      ExecutorService executor = null;
+      Document doc = null;
+
+      _logger.entering(CLASS, METHOD);
+
+      for (MongoCollection<Document> collection : _collections) {
+         splits = this.getSplitPoints(collection);
+
+         // the ObjectId ranges and the other "_id" values, or everything
+         for (int i = 0; i < (splits.isEmpty() ? 1 : splits.size() + 2); i++) {
+            ranges.add(new Range(collection, splits, i));
+         }
+      }
+
+      queue = new ArrayBlockingQueue<>(_queueSize);
+
+      executor = Executors.newFixedThreadPool(Math.min(_concurrency, ranges.size()), runnable -> {
+         Thread thread = new Thread(runnable, CLASS + ":" + METHOD);
+         thread.setDaemon(true);
+         return thread;
+      });
+
+      try {
+         for (Range range : ranges) {
+            final BlockingQueue<Document> target = queue;
+            final Supplier<Object> task;
+
+            task = _dao.bindWire(() -> { // the bytes of the scan count for the calling thread
+               try {
+                  this.read(range, target);
+               } catch (Exception ex) {
+                  failure.compareAndSet(null, ex);
+               } finally {
+                  try {
+                     target.put(END);
+                  } catch (InterruptedException ex) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+               return null;
+            });
+
+            executor.submit(task::get);
+         }
+
+         while (ended < ranges.size()) {
+            doc = queue.take();
+            if (doc == END) {
+               ended++;
+               if (failure.get() != null) {
+                  throw failure.get();
+               }
+            } else {
+               consumer.accept(doc);
+               count++;
+            }
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+
+      _logger.exiting(CLASS, METHOD);
+
+      return count;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Read one partition in "_id" order. A retry of an ObjectId range continues
+    * after the last "_id", "$gt" does not match the other types so a retry of
+    * a partition that mixes them skips the documents already read
+    */
+   private void read(final Range range, final BlockingQueue<Document> queue) throws Exception {
+      final boolean ordered = range._ordered;
+      final Object[] last = new Object[1];
+      final int[] read = new int[1];
+
+      _dao.call(false, () -> {
+         List<Bson> filters = new ArrayList<>(range._filters);
+         FindIterable<Document> find = null;
+         Document doc = null;
+
+         if (ordered && last[0] != null) {
+            filters.add(Filters.gt(_ID, last[0]));
+         }
+
+         find = range._collection.find(Filters.and(filters))
+            .sort(Sorts.ascending(_ID))
+            .batchSize(_batchSize);
+
+         if (!ordered && read[0] > 0) {
+            find.skip(read[0]);
+         }
+
+         try (MongoCursor<Document> cursor = find.iterator()) {
+            while (cursor.hasNext()) {
+               doc = cursor.next();
+               queue.put(doc);
+               last[0] = doc.get(_ID);
+               read[0]++;
+            }
+         }
+
+         return null;
+      });
+   }
+
+   private List<ObjectId> getSplitPoints(final MongoCollection<Document> collection)
+      throws Exception {
+      List<ObjectId> splits = null;
+
+      if (_partitions < 2) {
+         return Collections.emptyList();
+      }
+
+      splits = _dao.call(false, () -> SPLIT_TIME.equals(_split)
+         ? this.getTimeSplitPoints(collection) : this.getSampleSplitPoints(collection));
+
+      if (_logger.isLoggable(Level.FINE)) {
+         _logger.log(Level.INFO, "{0}: {1} split points: {2}",
+            new Object[]{collection.getNamespace().getFullName(), _split, splits});
+      }
+
+      return splits;
+   }
+
+   private List<ObjectId> getSampleSplitPoints(final MongoCollection<Document> collection) {
+      List<ObjectId> ids = new ArrayList<>();
+      List<ObjectId> splits = new ArrayList<>();
+      ObjectId split = null;
+
+      for (Document doc : collection.aggregate(Arrays.asList(
+         Aggregates.sample(_partitions * OVERSAMPLE),
+         Aggregates.project(Projections.include(_ID))))) {
+         if (doc.get(_ID) instanceof ObjectId) { // the other values are one more partition
+            ids.add(doc.getObjectId(_ID));
+         }
+      }
+
+      Collections.sort(ids);
+
+      for (int i = 1; i < _partitions && !ids.isEmpty(); i++) {
+         split = ids.get(i * ids.size() / _partitions);
+         if (splits.isEmpty() || split.compareTo(splits.get(splits.size() - 1)) > 0) {
+            splits.add(split);
+         }
+      }
+
+      return splits;
+   }
+
+   private List<ObjectId> getTimeSplitPoints(final MongoCollection<Document> collection) {
+      long first = 0;
+      long last = 0;
+      Document min = null;
+      Document max = null;
+      List<ObjectId> splits = new ArrayList<>();
+
+      min = collection.find(Filters.type(_ID, BsonType.OBJECT_ID))
+         .sort(Sorts.ascending(_ID)).projection(Projections.include(_ID)).first();
+      max = collection.find(Filters.type(_ID, BsonType.OBJECT_ID))
+         .sort(Sorts.descending(_ID)).projection(Projections.include(_ID)).first();
+
+      if (min == null || max == null) {
+         return splits;
+      }
+
+      first = min.getObjectId(_ID).getTimestamp();
+      last = max.getObjectId(_ID).getTimestamp() + 1L;
+
+      for (int i = 1; i < _partitions; i++) {
+         splits.add(getObjectId(first + (last - first) * i / _partitions));
+      }
+
+      return new ArrayList<>(new TreeSet<>(splits));
+   }
+
+   /**
+    * Smallest ObjectId with the timestamp
+    */
+   private static ObjectId getObjectId(final long seconds) {
+      return new ObjectId(String.format("%08x", seconds) + "0000000000000000");
+   }
+
+   /**
+    * One partition of a physical collection: the ObjectId range n (a bound
+    * only matches ObjectId values), or, after the last range, the other
+    * "_id" values. Without split points it is the whole collection.
+    */
+   private class Range {
+
+      private final MongoCollection<Document> _collection;
+      private final List<Bson> _filters = new ArrayList<>(Arrays.asList(_filter));
+      private final boolean _ordered;
+
+      private Range(final MongoCollection<Document> collection, final List<ObjectId> splits,
+         final int n) {
+         _collection = collection;
+         _ordered = !splits.isEmpty() && n <= splits.size();
+
+         if (_ordered) {
+            if (n > 0) {
+               _filters.add(Filters.gte(_ID, splits.get(n - 1)));
+            }
+            if (n < splits.size()) {
+               _filters.add(Filters.lt(_ID, splits.get(n)));
+            }
+         } else if (!splits.isEmpty()) {
+            _filters.add(Filters.not(Filters.type(_ID, BsonType.OBJECT_ID)));
+         }
+      }
+   }
+}
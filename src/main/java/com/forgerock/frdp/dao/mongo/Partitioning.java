@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Client-side partitioning of a logical collection, enabled with a
+ * "partition.count" greater than 1. The documents are spread over K physical
+ * collections (or databases, "partition.target") by consistent hashing of the
+ * "uid":
+ *
+ * <pre>
+ * partition.target  physical name of partition i
+ * collection        database / collection_i  (default)
+ * database          database_i / collection
+ * </pre>
+ *
+ * Each partition has VNODES points on a hash ring, a "uid" belongs to the
+ * partition of the first point at or after its hash. When K changes only the
+ * documents of about 1/K of the ring move. With a count of 1 the physical
+ * collection is the logical collection, so an existing collection can be
+ * partitioned.
+ *
+ * "partition.count.previous" is the count of the layout being rebalanced
+ * (see MongoDataAccess.rebalance()): until the rebalance is done a "uid" is
+ * looked for in its partition of both layouts.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class Partitioning {
+
+   static final String TARGET_COLLECTION = "collection";
+   static final String TARGET_DATABASE = "database";
+   private static final int VNODES = 128;
+   private final String _target;
+   private final Ring _current;
+   private final Ring _previous;
+
+   /**
+    * Create the partitioning
+    *
+    * @param count int number of partitions
+    * @param previous int number of partitions of the layout being rebalanced,
+    * 0 or the same as count if there is not one
+    * @param target String "collection" (default) or "database"
+    * @throws Exception unsupported target
+    */
+   Partitioning(final int count, final int previous, final String target) throws Exception {
+      if (target == null || target.isEmpty() || TARGET_COLLECTION.equalsIgnoreCase(target)) {
+         _target = TARGET_COLLECTION;
+      } else if (TARGET_DATABASE.equalsIgnoreCase(target)) {
+         _target = TARGET_DATABASE;
+      } else {
+         throw new Exception("Unsupported partition target '" + target + "', use '"
+            + TARGET_COLLECTION + "' or '" + TARGET_DATABASE + "'");
+      }
+
+      _current = new Ring(Math.max(1, count));
+      _previous = previous > 0 && previous != _current._count ? new Ring(previous) : null;
+   }
+
+   int getCount() {
+      return _current._count;
+   }
+
+   /**
+    * Check if a previous layout is being rebalanced
+    *
+    * @return boolean
+    */
+   boolean isRebalancing() {
+      return _previous != null;
+   }
+
+   /**
+    * Get the physical name of the partition that owns the "uid"
+    *
+    * @param database String logical database
+    * @param collection String logical collection
+    * @param uid String document identifier
+    * @param previous boolean true for the previous layout
+    * @return String[] database and collection, null if previous is true and
+    * there is no previous layout
+    */
+   String[] getOwner(final String database, final String collection, final String uid, final boolean previous) {
+      Ring ring = previous ? _previous : _current;
+
+      return ring == null ? null : this.getName(database, collection, ring, ring.getPartition(uid));
+   }
+
+   /**
+    * Get the physical names of all the partitions: the current layout, then
+    * the partitions of the previous layout that are not in the current one
+    *
+    * @param database String logical database
+    * @param collection String logical collection
+    * @return List of String[] database and collection
+    */
+   List<String[]> getAll(final String database, final String collection) {
+      List<String[]> names = new ArrayList<>();
+      String[] name = null;
+
+      for (int i = 0; i < _current._count; i++) {
+         names.add(this.getName(database, collection, _current, i));
+      }
+
+      for (int i = 0; _previous != null && i < _previous._count; i++) {
+         name = this.getName(database, collection, _previous, i);
+         if (!contains(names, name)) {
+            names.add(name);
+         }
+      }
+
+      return names;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private String[] getName(final String database, final String collection, final Ring ring, final int partition) {
+      if (ring._count == 1) {
+         return new String[]{database, collection}; // not partitioned
+      } else if (TARGET_DATABASE.equals(_target)) {
+         return new String[]{database + "_" + partition, collection};
+      } else {
+         return new String[]{database, collection + "_" + partition};
+      }
+   }
+
+   private static boolean contains(final List<String[]> names, final String[] name) {
+      for (String[] n : names) {
+         if (Arrays.equals(n, name)) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * FNV-1a over the characters, then the MurmurHash3 finalizer
+    */
+   private static long hash(final String value) {
+      long hash = 0xcbf29ce484222325L;
+
+      for (int i = 0; i < value.length(); i++) {
+         hash ^= value.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb93fe53e4b1aL;
+      hash ^= hash >>> 33;
+
+      return hash;
+   }
+
+   /**
+    * Hash ring of one layout, the points of a partition do not depend on the
+    * number of partitions
+    */
+   private static class Ring {
+
+      private final int _count;
+      private final long[] _points;
+      private final int[] _owners;
+
+      Ring(final int count) {
+         long[][] entries = new long[count * VNODES][];
+
+         _count = count;
+         _points = new long[entries.length];
+         _owners = new int[entries.length];
+
+         for (int p = 0; p < count; p++) {
+            for (int v = 0; v < VNODES; v++) {
+               entries[p * VNODES + v] = new long[]{hash("partition-" + p + "#" + v), p};
+            }
+         }
+
+         Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+         for (int i = 0; i < entries.length; i++) {
+            _points[i] = entries[i][0];
+            _owners[i] = (int) entries[i][1];
+         }
+      }
+
+      int getPartition(final String uid) {
+         int index = 0;
+
+         if (_count == 1) {
+            return 0;
+         }
+
+         index = Arrays.binarySearch(_points, hash(uid == null ? "" : uid));
+         if (index < 0) {
+            index = -index - 1; // first point after the hash
+         }
+
+         return _owners[index == _points.length ? 0 : index];
+      }
+   }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Spill of large "data" payloads to GridFS, enabled with the
+ * "spill.threshold.bytes" param. The JSON of a "data" that is larger than
+ * the threshold is uploaded to the GridFS bucket "collection_spill" of the
+ * logical database and collection (shared by all the partitions, see
+ * Partitioning), the document keeps a reference and the scalar attributes
+ * of "data", so queries on them still match:
+ *
+ * <pre>
+ * {
+ *   "uid": "...",
+ *   "data": { "owner": "amadmin", "type": "report" },  scalar attributes only
+ *   "spill": { "id": ObjectId, "length": 14680064 },   GridFS file, JSON bytes
+ *   ...
+ * }
+ * </pre>
+ *
+ * The file is uploaded before the document is written and deleted after the
+ * document is deleted or replaced, or when the server rejected the write
+ * (MongoWriteException). A file is left behind (never a document without its
+ * file) when the outcome of a write is unknown, any other error, when the TTL
+ * index removes an expired document, or when an import upserts a spilled
+ * document. sweep() deletes the files that no document references.
+ *
+ * Spilled documents are always read back, also when the threshold is
+ * removed.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class PayloadSpill {
+
+   static final String SPILL = "spill";
+   static final String ID = "id";
+   static final String LENGTH = "length";
+   static final String BUCKET_SUFFIX = "_spill";
+   private static final String UPLOAD_DATE = "uploadDate";
+   static final int INLINE_MAX = 1024;
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+   private final long _threshold;
+
+   /**
+    * Create the spill
+    *
+    * @param threshold long maximum JSON length of an inline "data", in UTF-8
+    * bytes, 0 to never spill
+    */
+   PayloadSpill(final long threshold) {
+      _threshold = Math.max(0, threshold);
+   }
+
+   /**
+    * Check if a "data" must be spilled, its UTF-8 length is larger than the
+    * threshold. A char is 1 to 3 bytes, the length is only counted when the
+    * number of chars does not decide.
+    *
+    * @param json String JSON of the "data"
+    * @return boolean
+    */
+   boolean isOversized(final String json) {
+      if (_threshold == 0 || json == null || json.length() * 3L <= _threshold) {
+         return false;
+      }
+
+      return json.length() > _threshold || WireMetrics.getLength(json) > _threshold;
+   }
+
+   /**
+    * Upload the JSON of a "data"
+    *
+    * @param dao MongoDataAccess, runs the upload with its retry policy
+    * @param database MongoDatabase logical database
+    * @param collection String logical collection
+    * @param uid String document identifier, the file name
+    * @param json String JSON of the "data"
+    * @return Document reference, "id" and "length"
+    * @throws Exception the upload failed
+    */
+   Document upload(final MongoDataAccess dao, final MongoDatabase database, final String collection,
+      final String uid, final String json) throws Exception {
+      final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+      final GridFSBucket bucket = getBucket(database, collection);
+      ObjectId id = null;
+
+      id = dao.call(true, () -> bucket.uploadFromStream(uid, new ByteArrayInputStream(bytes),
+         new GridFSUploadOptions().metadata(new Document(ConstantsIF.UID, uid))));
+
+      return new Document(ID, id).append(LENGTH, (long) bytes.length);
+   }
+
+   /**
+    * Open the JSON of a spilled "data"
+    *
+    * @param database MongoDatabase logical database
+    * @param collection String logical collection
+    * @param reference Document "spill" of the document
+    * @return InputStream UTF-8 JSON, the caller closes it
+    */
+   InputStream open(final MongoDatabase database, final String collection, final Document reference) {
+      return getBucket(database, collection).openDownloadStream(reference.getObjectId(ID));
+   }
+
+   /**
+    * Read a spilled "data", parsed from the stream without a copy of the JSON
+    *
+    * @param dao MongoDataAccess, runs the download with its retry policy
+    * @param database MongoDatabase logical database
+    * @param collection String logical collection
+    * @param reference Document "spill" of the document
+    * @return JSONObject "data"
+    * @throws Exception the file is missing or is not a JSON object
+    */
+   JSONObject read(final MongoDataAccess dao, final MongoDatabase database, final String collection,
+      final Document reference) throws Exception {
+      return dao.call(false, () -> {
+         try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            this.open(database, collection, reference), StandardCharsets.UTF_8))) {
+            return (JSONObject) new JSONParser().parse(reader);
+         }
+      });
+   }
+
+   /**
+    * Delete the file of a spilled "data". Errors are logged, the file is left
+    * behind.
+    *
+    * @param database MongoDatabase logical database
+    * @param collection String logical collection
+    * @param reference Document "spill" of the document, can be null
+    */
+   void delete(final MongoDatabase database, final String collection, final Document reference) {
+      if (reference == null || reference.getObjectId(ID) == null) {
+         return;
+      }
+
+      try {
+         getBucket(database, collection).delete(reference.getObjectId(ID));
+      } catch (Exception ex) {
+         _logger.log(Level.WARNING, "Can not delete spilled data {0} of ''{1}'': {2}",
+            new Object[]{reference.getObjectId(ID), collection, ex.getMessage()});
+      }
+
+      return;
+   }
+
+   /**
+    * Delete the files that no document references and that were uploaded
+    * before the date: a file is uploaded before its document is written, a
+    * recent file can belong to a write in progress.
+    *
+    * <pre>
+    * read the "spill.id" of all the spilled documents
+    * delete each older file whose id was not read
+    * </pre>
+    *
+    * @param dao MongoDataAccess, runs the scan with its retry policy
+    * @param database MongoDatabase logical database
+    * @param collection String logical collection
+    * @param collections List of MongoCollection, the partitions of the
+    * collection (see Partitioning)
+    * @param before Date files uploaded after it are kept
+    * @return long[] files scanned [0] and deleted [1]
+    * @throws Exception the scan failed
+    */
+   long[] sweep(final MongoDataAccess dao, final MongoDatabase database, final String collection,
+      final List<MongoCollection<Document>> collections, final Date before) throws Exception {
+      final GridFSBucket bucket = getBucket(database, collection);
+      final Set<ObjectId> referenced = new HashSet<>();
+      List<ObjectId> orphans = null;
+      long scanned = 0;
+
+      dao.call(false, () -> {
+         referenced.clear();
+         for (MongoCollection<Document> partition : collections) {
+            for (Document doc : partition.find(Filters.exists(SPILL))
+               .projection(Projections.include(SPILL + "." + ID))) {
+               if (getReference(doc) != null && getReference(doc).getObjectId(ID) != null) {
+                  referenced.add(getReference(doc).getObjectId(ID));
+               }
+            }
+         }
+         return null;
+      });
+
+      orphans = dao.call(false, () -> {
+         List<ObjectId> ids = new ArrayList<>();
+         for (GridFSFile file : bucket.find(Filters.lt(UPLOAD_DATE, before))) {
+            ids.add(file.getObjectId());
+         }
+         return ids;
+      });
+
+      scanned = orphans.size();
+      orphans.removeAll(referenced);
+
+      for (ObjectId id : orphans) {
+         this.delete(database, collection, new Document(ID, id));
+      }
+
+      _logger.log(Level.INFO, "{0}: {1} files, {2} not referenced",
+         new Object[]{collection + BUCKET_SUFFIX, scanned, orphans.size()});
+
+      return new long[]{scanned, orphans.size()};
+   }
+
+   /**
+    * Get the attributes of a "data" that stay in the document: Strings up to
+    * INLINE_MAX characters, Numbers and Booleans
+    *
+    * @param json JSONObject "data"
+    * @return JSONObject inline attributes
+    */
+   static JSONObject getInline(final JSONObject json) {
+      JSONObject inline = new JSONObject();
+
+      for (Object o : json.entrySet()) {
+         Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+         if (entry.getValue() instanceof Number || entry.getValue() instanceof Boolean
+            || (entry.getValue() instanceof String && ((String) entry.getValue()).length() <= INLINE_MAX)) {
+            inline.put(entry.getKey(), entry.getValue());
+         }
+      }
+
+      return inline;
+   }
+
+   /**
+    * Get the reference of a document
+    *
+    * @param doc Document, can be null
+    * @return Document "spill", null if the "data" is not spilled
+    */
+   static Document getReference(final Document doc) {
+      return doc != null && doc.get(SPILL) instanceof Document ? (Document) doc.get(SPILL) : null;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private static GridFSBucket getBucket(final MongoDatabase database, final String collection) {
+      return GridFSBuckets.create(database, collection + BUCKET_SUFFIX);
+   }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.utils.JSON;
+import com.forgerock.frdp.utils.STR;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.TextSearchOptions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Compiled query JSON (see MongoDataAccess.getQueryFromJSON()). The shape of
+ * a query is its operators and attributes, with the values left as slots:
+ *
+ * <pre>
+ * {"operator":"and","queries":[
+ *   {"operator":"equal","attribute":"data.owner","value":"amadmin"},
+ *   {"operator":"equal","attribute":"data.category","value":"sso_session"}]}
+ * shape:  "and"["equal"("data.owner",?),"equal"("data.category",?),]
+ * values: amadmin, sso_session
+ *
+ * {"operator":"text","value":"blue widget","language":"english"}
+ * shape:  "text"("english",null,null,?)
+ * values: blue widget
+ * </pre>
+ *
+ * A shape is validated once and its template is cached, later queries with
+ * the same shape only bind their values. A shape that is not valid is cached
+ * with its error, and rejected without being validated again. The cache
+ * holds the MAX_SHAPES most recently used shapes.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class QueryTemplate {
+
+   static final int MAX_SHAPES = 256;
+   private static final String SLOT = "?";
+   private static final String EMPTY = "-";
+   private static final String SKIP = "_";
+   private static final Map<String, Object> SHAPES = Collections.synchronizedMap(
+      new LinkedHashMap<String, Object>(64, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Object> eldest) {
+         return this.size() > MAX_SHAPES;
+      }
+   });
+
+   private final String _operator;
+   private final List<Object> _slots; // String attribute (equal) or TextSearchOptions (text)
+
+   private QueryTemplate(final String operator, final List<Object> slots) {
+      _operator = operator;
+      _slots = slots;
+   }
+
+   /**
+    * Get the query for the JSON
+    *
+    * @param json JSONObject query object
+    * @return Bson query
+    * @throws Exception the shape of the query is not valid
+    */
+   static Bson getQuery(final JSONObject json) throws Exception {
+      String shape = null;
+      Object template = null;
+      List<String> values = new ArrayList<>(4);
+
+      shape = getShape(json, values);
+      template = SHAPES.get(shape);
+
+      if (template == null) {
+         try {
+            template = compile(json);
+         } catch (Exception ex) {
+            template = ex.getMessage();
+         }
+         SHAPES.put(shape, template);
+      }
+
+      if (template instanceof String) {
+         throw new Exception((String) template); // rejected shape
+      }
+
+      return ((QueryTemplate) template).bind(values);
+   }
+
+   /**
+    * Check if the query has a "text" operator, at the top or in an "and"
+    *
+    * @param json JSONObject query object
+    * @return boolean true if the results have a text score
+    */
+   static boolean isText(final JSONObject json) {
+      Object queries = null;
+
+      if (MongoDataAccess.OPERATOR_TEXT.equals(JSON.getString(json, ConstantsIF.OPERATOR))) {
+         return true;
+      }
+
+      if (ConstantsIF.AND.equals(JSON.getString(json, ConstantsIF.OPERATOR))) {
+         queries = json.get(ConstantsIF.QUERIES);
+         if (queries instanceof JSONArray) {
+            for (Object o : (JSONArray) queries) {
+               if (o instanceof JSONObject && MongoDataAccess.OPERATOR_TEXT.equalsIgnoreCase(
+                  JSON.getString((JSONObject) o, ConstantsIF.OPERATOR))) {
+                  return true;
+               }
+            }
+         }
+      }
+
+      return false;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Bind the values to the slots
+    */
+   private Bson bind(final List<String> values) {
+      List<Bson> filters = null;
+
+      switch (_operator) {
+         case ConstantsIF.EQUAL: {
+            return new Document((String) _slots.get(0), values.get(0));
+         }
+         case MongoDataAccess.OPERATOR_TEXT: {
+            return Filters.text(values.get(0), (TextSearchOptions) _slots.get(0));
+         }
+         case ConstantsIF.AND: {
+            filters = new LinkedList<>();
+            for (int i = 0; i < _slots.size(); i++) {
+               if (_slots.get(i) instanceof TextSearchOptions) {
+                  filters.add(Filters.text(values.get(i), (TextSearchOptions) _slots.get(i)));
+               } else {
+                  filters.add(Filters.eq((String) _slots.get(i), values.get(i)));
+               }
+            }
+            return Filters.and(filters);
+         }
+         default: {
+            return new Document(); // ConstantsIF.ALL
+         }
+      }
+   }
+
+   /**
+    * Get the shape of the query and collect its values, in the order of the
+    * slots. Only reads the JSON, the validation is done by compile().
+    */
+   private static String getShape(final JSONObject json, final List<String> values) {
+      String oper = null;
+      String attr = null;
+      String value = null;
+      Object queries = null;
+      StringBuilder shape = new StringBuilder();
+
+      oper = JSON.getString(json, ConstantsIF.OPERATOR);
+      shape.append(JSONValue.toJSONString(oper));
+
+      if (ConstantsIF.EQUAL.equals(oper)) {
+         value = JSON.getString(json, ConstantsIF.VALUE);
+         shape.append('(').append(JSONValue.toJSONString(JSON.getString(json, ConstantsIF.ATTRIBUTE)))
+            .append(',').append(STR.isEmpty(value) ? EMPTY : SLOT).append(')');
+         values.add(value);
+      } else if (MongoDataAccess.OPERATOR_TEXT.equals(oper)) {
+         value = JSON.getString(json, ConstantsIF.VALUE);
+         appendTextShape(shape, json, STR.isEmpty(value) ? EMPTY : SLOT);
+         values.add(value);
+      } else if (ConstantsIF.AND.equals(oper)) {
+         queries = json.get(ConstantsIF.QUERIES);
+         shape.append('[');
+         if (queries instanceof JSONArray) {
+            for (Object o : (JSONArray) queries) {
+               oper = o instanceof JSONObject ? JSON.getString((JSONObject) o, ConstantsIF.OPERATOR) : null;
+               attr = o instanceof JSONObject ? JSON.getString((JSONObject) o, ConstantsIF.ATTRIBUTE) : null;
+               value = o instanceof JSONObject ? JSON.getString((JSONObject) o, ConstantsIF.VALUE) : null;
+               if (MongoDataAccess.OPERATOR_TEXT.equalsIgnoreCase(oper) && !STR.isEmpty(value)) {
+                  appendTextShape(shape.append(JSONValue.toJSONString(oper)), (JSONObject) o, SLOT);
+                  values.add(value);
+               } else if (!STR.isEmpty(oper) && !STR.isEmpty(attr) && !STR.isEmpty(value)) {
+                  shape.append(JSONValue.toJSONString(oper)).append('(')
+                     .append(JSONValue.toJSONString(attr)).append(',').append(SLOT).append(')');
+                  values.add(value);
+               } else {
+                  shape.append(SKIP); // ignored, as getQueryFromJSON() does
+               }
+               shape.append(',');
+            }
+         } else if (queries != null) {
+            shape.append(EMPTY);
+         }
+         shape.append(']');
+      }
+
+      return shape.toString();
+   }
+
+   /**
+    * The options of a "text" operator are part of its shape
+    */
+   private static void appendTextShape(final StringBuilder shape, final JSONObject json, final String slot) {
+      shape.append('(')
+         .append(JSONValue.toJSONString(json.get(MongoDataAccess.LANGUAGE))).append(',')
+         .append(JSONValue.toJSONString(json.get(MongoDataAccess.CASE_SENSITIVE))).append(',')
+         .append(JSONValue.toJSONString(json.get(MongoDataAccess.DIACRITIC_SENSITIVE))).append(',')
+         .append(slot).append(')');
+   }
+
+   /**
+    * Validate the query and create its template
+    */
+   private static QueryTemplate compile(final JSONObject json) throws Exception {
+      String oper = null;
+      String subOper = null;
+      String attr = null;
+      String value = null;
+      JSONArray jsonQueries = null;
+      List<Object> slots = null;
+
+      oper = JSON.getString(json, ConstantsIF.OPERATOR);
+
+      if (STR.isEmpty(oper)) {
+         throw new Exception("Query Operator is empty");
+      }
+
+      switch (oper) {
+         case ConstantsIF.ALL: // if oper == "all" ... return all the documents
+         {
+            slots = Collections.emptyList();
+
+            break;
+         }
+         case ConstantsIF.EQUAL: {
+            attr = JSON.getString(json, ConstantsIF.ATTRIBUTE);
+
+            if (STR.isEmpty(attr)) {
+               throw new Exception("Query Attribute is empty");
+            }
+
+            value = JSON.getString(json, ConstantsIF.VALUE);
+
+            if (STR.isEmpty(value)) {
+               throw new Exception("Query Value is empty");
+            }
+            slots = Collections.singletonList(attr);
+
+            break;
+         }
+         case MongoDataAccess.OPERATOR_TEXT: {
+            value = JSON.getString(json, ConstantsIF.VALUE);
+
+            if (STR.isEmpty(value)) {
+               throw new Exception("Query Value is empty");
+            }
+            slots = Collections.singletonList(getTextOptions(json));
+
+            break;
+         }
+         case ConstantsIF.AND: {
+            jsonQueries = JSON.getArray(json, ConstantsIF.QUERIES);
+
+            if (jsonQueries == null || jsonQueries.size() < 2) {
+               throw new Exception("Operator 'AND' requires at least two queries");
+            }
+
+            slots = new ArrayList<>();
+
+            for (Object o : jsonQueries) {
+               if (o != null && o instanceof JSONObject) {
+                  subOper = JSON.getString((JSONObject) o, ConstantsIF.OPERATOR);
+                  attr = JSON.getString((JSONObject) o, ConstantsIF.ATTRIBUTE);
+                  value = JSON.getString((JSONObject) o, ConstantsIF.VALUE);
+
+                  if (MongoDataAccess.OPERATOR_TEXT.equalsIgnoreCase(subOper) && !STR.isEmpty(value)) {
+                     for (Object slot : slots) {
+                        if (slot instanceof TextSearchOptions) {
+                           throw new Exception("Queries has more than one '"
+                              + MongoDataAccess.OPERATOR_TEXT + "' Operator");
+                        }
+                     }
+                     slots.add(getTextOptions((JSONObject) o));
+                  } else if (!STR.isEmpty(subOper) && !STR.isEmpty(attr) && !STR.isEmpty(value)) {
+                     if (subOper.equalsIgnoreCase(ConstantsIF.EQUAL)) {
+                        slots.add(attr);
+                     } else {
+                        throw new Exception("Queries has an unsupported Operator '" + subOper + "'");
+                     }
+                  }
+               }
+            }
+
+            if (slots.isEmpty()) {
+               throw new Exception("No Filters were created from the Queries");
+            }
+
+            break;
+         }
+         default: {
+            throw new Exception("Unknown Query Operator '" + oper + "'");
+         }
+      }
+
+      return new QueryTemplate(oper, slots);
+   }
+
+   /**
+    * Get the options of a "text" operator: "language" (default: the language
+    * of the text index), "caseSensitive" and "diacriticSensitive" (default:
+    * false)
+    */
+   private static TextSearchOptions getTextOptions(final JSONObject json) throws Exception {
+      TextSearchOptions options = new TextSearchOptions();
+      Object language = json.get(MongoDataAccess.LANGUAGE);
+
+      if (language != null && !(language instanceof String)) {
+         throw new Exception("Query '" + MongoDataAccess.LANGUAGE + "' is not a String");
+      }
+      if (!STR.isEmpty((String) language)) {
+         options.language((String) language);
+      }
+
+      for (String name : new String[]{MongoDataAccess.CASE_SENSITIVE, MongoDataAccess.DIACRITIC_SENSITIVE}) {
+         if (json.get(name) != null && !(json.get(name) instanceof Boolean)) {
+            throw new Exception("Query '" + name + "' is not a Boolean");
+         }
+      }
+      options.caseSensitive((Boolean) json.get(MongoDataAccess.CASE_SENSITIVE));
+      options.diacriticSensitive((Boolean) json.get(MongoDataAccess.DIACRITIC_SENSITIVE));
+
+      return options;
+   }
+}
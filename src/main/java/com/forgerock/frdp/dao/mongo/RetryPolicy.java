@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoSocketOpenException;
+import com.mongodb.MongoTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for the MongoDB calls of MongoDataAccess, applied after the
+ * driver's own retryable reads / writes. A call that fails with a transient
+ * error is retried up to "retry.attempts" times in total, with exponential
+ * backoff and full jitter: attempt n waits a random time between 0 and
+ * min("retry.backoff.max.ms", "retry.backoff.ms" * 2^(n-1)).
+ *
+ * Reads are retried for all transient errors. Writes are not idempotent
+ * ("version" is incremented), they are only retried when the error proves
+ * the write was not applied: the connection could not be opened, or the
+ * server is not (or no longer) the primary.
+ *
+ * A server selection timeout is never retried: the driver already waited
+ * "serverselection.timeout.ms" for a server, it is counted by the
+ * CircuitBreaker at once.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class RetryPolicy {
+
+   static final String LABEL_RETRYABLE_WRITE = "RetryableWriteError";
+   static final String LABEL_TRANSIENT_TRANSACTION = "TransientTransactionError";
+
+   private final int _attempts;
+   private final long _backoffMillis;
+   private final long _backoffMaxMillis;
+
+   /**
+    * Create the policy
+    *
+    * @param attempts int total number of attempts, 1 disables retries
+    * @param backoffMillis long backoff before the first retry
+    * @param backoffMaxMillis long maximum backoff
+    */
+   RetryPolicy(final int attempts, final long backoffMillis, final long backoffMaxMillis) {
+      _attempts = Math.max(1, attempts);
+      _backoffMillis = Math.max(0, backoffMillis);
+      _backoffMaxMillis = Math.max(_backoffMillis, backoffMaxMillis);
+   }
+
+   int getAttempts() {
+      return _attempts;
+   }
+
+   /**
+    * Get the backoff before the next attempt
+    *
+    * @param attempt int number of failed attempts, 1 or more
+    * @return long milliseconds to wait
+    */
+   long getBackoff(final int attempt) {
+      long ceiling = _backoffMillis << Math.min(attempt - 1, 20);
+
+      ceiling = Math.min(_backoffMaxMillis, ceiling < 0 ? _backoffMaxMillis : ceiling);
+
+      return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+   }
+
+   /**
+    * Check if the error is transient and the call can be retried
+    *
+    * @param ex Exception from the call
+    * @param write boolean true if the call is a write
+    * @return boolean true if the call can be retried
+    */
+   static boolean isRetryable(final Exception ex, final boolean write) {
+      if (!isTransient(ex) || ex instanceof MongoTimeoutException) {
+         return false;
+      }
+
+      if (!write) {
+         return true;
+      }
+
+      return ex instanceof MongoSocketOpenException
+         || ex instanceof MongoNotPrimaryException
+         || ex instanceof MongoNodeIsRecoveringException;
+   }
+
+   /**
+    * Check if the error is caused by the availability of the cluster (and not
+    * by the request), these errors are counted by the CircuitBreaker
+    *
+    * @param ex Exception from the call
+    * @return boolean true for transient errors
+    */
+   static boolean isTransient(final Exception ex) {
+      if (ex instanceof MongoTimeoutException
+         || ex instanceof MongoSocketException
+         || ex instanceof MongoNotPrimaryException
+         || ex instanceof MongoNodeIsRecoveringException) {
+         return true;
+      }
+
+      return ex instanceof MongoException
+         && (((MongoException) ex).hasErrorLabel(LABEL_RETRYABLE_WRITE)
+         || ((MongoException) ex).hasErrorLabel(LABEL_TRANSIENT_TRANSACTION));
+   }
+}
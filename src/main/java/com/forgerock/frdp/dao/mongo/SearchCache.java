@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.utils.JSON;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Cache of SEARCH results for one collection, enabled with the
+ * "search.cache.enabled" param. The key is the canonical JSON of the query:
+ * attributes in name order and the "queries" of an "and" sorted, so
+ * equivalent queries share an entry.
+ *
+ * Entries are bounded by "search.cache.size" (least recently used first)
+ * and "search.cache.ttl.ms". Every create, replace, patch and delete of the
+ * collection increments its generation, an entry read before the last
+ * increment is not used. Writes made by other processes, and documents that
+ * expire, are only seen when the entry expires.
+ *
+ * The cache is shared by all the MongoDataAccess instances of the JVM that
+ * use the same cluster and collection, the first one sets the bounds.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class SearchCache {
+
+   private static final Map<String, SearchCache> CACHES = new ConcurrentHashMap<>();
+   private final AtomicLong _generation = new AtomicLong();
+   private final long _ttlMillis;
+   private final Map<String, Results> _entries;
+
+   private SearchCache(final int size, final long ttlMillis) {
+      _ttlMillis = Math.max(1, ttlMillis);
+      _entries = new LinkedHashMap<String, Results>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(final Map.Entry<String, Results> eldest) {
+            return this.size() > Math.max(1, size);
+         }
+      };
+   }
+
+   /**
+    * Get the cache for the cluster and collection, create it if it does not
+    * exist
+    *
+    * @param key String "host:port/database.collection"
+    * @param size int maximum entries
+    * @param ttlMillis long time an entry is used
+    * @return SearchCache
+    */
+   static SearchCache getInstance(final String key, final int size, final long ttlMillis) {
+      return CACHES.computeIfAbsent(key, k -> new SearchCache(size, ttlMillis));
+   }
+
+   /**
+    * Get the cache for the cluster and collection
+    *
+    * @param key String "host:port/database.collection"
+    * @return SearchCache, null if it does not exist
+    */
+   static SearchCache get(final String key) {
+      return CACHES.get(key);
+   }
+
+   /**
+    * Get the key of a query
+    *
+    * @param query JSONObject query
+    * @return String canonical JSON
+    */
+   static String getKey(final JSONObject query) {
+      return Coalescer.getCanonicalJSON(normalize(query));
+   }
+
+   /**
+    * Get the current generation, read it before the search
+    *
+    * @return long generation
+    */
+   long getGeneration() {
+      return _generation.get();
+   }
+
+   /**
+    * Record a write to the collection, call it after the write (also when it
+    * failed, it may have been applied)
+    */
+   void invalidate() {
+      _generation.incrementAndGet();
+   }
+
+   /**
+    * Get the results of a query
+    *
+    * @param key String from getKey()
+    * @return JSONArray copy of the results, null if there is no valid entry
+    */
+   JSONArray getResults(final String key) {
+      Results entry = null;
+
+      synchronized (_entries) {
+         entry = _entries.get(key);
+         if (entry != null && (entry._generation != _generation.get()
+            || System.currentTimeMillis() - entry._created >= _ttlMillis)) {
+            _entries.remove(key);
+            entry = null;
+         }
+      }
+
+      return entry == null ? null : (JSONArray) Coalescer.copyJSON(entry._results);
+   }
+
+   /**
+    * Add the results of a query
+    *
+    * @param key String from getKey()
+    * @param generation long generation read before the search
+    * @param results JSONArray results, copied
+    */
+   void putResults(final String key, final long generation, final JSONArray results) {
+      Results entry = null;
+
+      if (generation != _generation.get()) {
+         return; // a write completed during the search
+      }
+
+      entry = new Results(generation, (JSONArray) Coalescer.copyJSON(results));
+
+      synchronized (_entries) {
+         _entries.put(key, entry);
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   /**
+    * Copy of the query with the "queries" of an "and" in canonical order
+    */
+   private static Object normalize(final Object value) {
+      JSONObject object = null;
+      JSONArray queries = null;
+      List<Object> sorted = null;
+
+      if (!(value instanceof JSONObject)) {
+         return value;
+      }
+
+      object = new JSONObject();
+      object.putAll((JSONObject) value);
+
+      if (ConstantsIF.AND.equalsIgnoreCase(JSON.getString(object, ConstantsIF.OPERATOR))
+         && object.get(ConstantsIF.QUERIES) instanceof JSONArray) {
+         sorted = new ArrayList<>();
+         for (Object query : (JSONArray) object.get(ConstantsIF.QUERIES)) {
+            sorted.add(normalize(query));
+         }
+         sorted.sort(Comparator.comparing(Coalescer::getCanonicalJSON));
+         queries = new JSONArray();
+         queries.addAll(sorted);
+         object.put(ConstantsIF.QUERIES, queries);
+      }
+
+      return object;
+   }
+
+   /**
+    * Results of a query and the generation they were read at
+    */
+   private static class Results {
+
+      private final long _generation;
+      private final long _created = System.currentTimeMillis();
+      private final JSONArray _results;
+
+      Results(final long generation, final JSONArray results) {
+         _generation = generation;
+         _results = results;
+      }
+   }
+}
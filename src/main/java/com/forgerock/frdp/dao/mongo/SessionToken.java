@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.client.ClientSession;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+/**
+ * Session token of the causally consistent sessions, enabled with the
+ * "sessions.enabled" param. A write returns the operation time and the
+ * cluster time of its session as an opaque token (the "session" param of the
+ * output). A READ or SEARCH with the token (the "session" param of the input)
+ * runs in a session that is advanced to these times, on a secondary: the
+ * server waits until the secondary has the write before it reads.
+ *
+ * <pre>
+ * token = base64url( {"operationTime": Timestamp, "clusterTime": {...}} )
+ * </pre>
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class SessionToken {
+
+   private static final String OPERATION_TIME = "operationTime";
+   private static final String CLUSTER_TIME = "clusterTime";
+
+   private SessionToken() {
+   }
+
+   /**
+    * Get the token of a session
+    *
+    * @param session ClientSession
+    * @return String token, null if the session has no operation time
+    */
+   static String get(final ClientSession session) {
+      BsonDocument doc = null;
+
+      if (session == null || session.getOperationTime() == null) {
+         return null;
+      }
+
+      doc = new BsonDocument(OPERATION_TIME, session.getOperationTime());
+      if (session.getClusterTime() != null) {
+         doc.put(CLUSTER_TIME, session.getClusterTime());
+      }
+
+      return Base64.getUrlEncoder().withoutPadding()
+         .encodeToString(doc.toJson().getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * Advance a session to the times of a token
+    *
+    * @param session ClientSession, causally consistent
+    * @param token String from get()
+    * @throws Exception the token is not valid
+    */
+   static void apply(final ClientSession session, final String token) throws Exception {
+      BsonDocument doc = null;
+
+      try {
+         doc = BsonDocument.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+      } catch (RuntimeException ex) {
+         throw new Exception("Session token is not valid: " + ex.getMessage());
+      }
+
+      if (!(doc.get(OPERATION_TIME) instanceof BsonTimestamp)) {
+         throw new Exception("Session token has no '" + OPERATION_TIME + "'");
+      }
+
+      session.advanceOperationTime(doc.getTimestamp(OPERATION_TIME));
+      if (doc.get(CLUSTER_TIME) instanceof BsonDocument) {
+         session.advanceClusterTime(doc.getDocument(CLUSTER_TIME));
+      }
+
+      return;
+   }
+}
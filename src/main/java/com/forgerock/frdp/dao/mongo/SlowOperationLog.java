@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Slow operation log, a CommandListener registered on the MongoClient by
+ * MongoDataAccess.init() when the "slowop.threshold.ms" param is set.
+ *
+ * Every command that takes longer than the threshold is logged with: the
+ * command name, the namespace, the filter shape (all values replaced with
+ * "?"), the duration and the number of documents returned.
+ *
+ * When "slowop.explain" is true, the first occurrence of each slow filter
+ * shape is explained (queryPlanner) in the background and the shape is
+ * recorded with a flag that is true when the winning plan is a COLLSCAN. The
+ * log holds the MAX_SHAPES most recently seen slow shapes, a shape that was
+ * dropped is explained again when it is slow again.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class SlowOperationLog implements CommandListener {
+
+   static final int MAX_SHAPES = 1024;
+   private static final String REDACTED = "?";
+   private static final String COLLSCAN = "COLLSCAN";
+   private static final Map<String, String> FILTERS = Map.of(
+      "find", "filter",
+      "count", "query",
+      "distinct", "query",
+      "aggregate", "pipeline",
+      "findAndModify", "query",
+      "delete", "deletes",
+      "update", "updates");
+   private final String CLASS = this.getClass().getName();
+   private final Logger _logger = Logger.getLogger(CLASS);
+
+   private final long _thresholdNanos;
+   private final boolean _explain;
+   private final Map<Integer, Started> _started = new ConcurrentHashMap<>();
+   private final Map<String, Boolean> _shapes = Collections.synchronizedMap(
+      new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+         return this.size() > MAX_SHAPES;
+      }
+   });
+   private ExecutorService _executor = null;
+   private MongoClient _client = null;
+
+   /**
+    * Create the slow operation log
+    *
+    * @param thresholdMillis long threshold in milliseconds
+    * @param explain boolean explain the first occurrence of each slow shape
+    */
+   public SlowOperationLog(final long thresholdMillis, final boolean explain) {
+      _thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+      _explain = explain;
+   }
+
+   /**
+    * Set the client that is used to run "explain" commands
+    *
+    * @param client MongoClient
+    */
+   void setClient(final MongoClient client) {
+      _client = client;
+   }
+
+   /**
+    * Get the slow filter shapes, the MAX_SHAPES most recently seen. The value
+    * is true if the shape was explained as a COLLSCAN, false if it uses an
+    * index or was not explained (yet)
+    *
+    * @return Map of shape to COLLSCAN flag, a copy
+    */
+   public Map<String, Boolean> getShapes() {
+      synchronized (_shapes) {
+         return Collections.unmodifiableMap(new LinkedHashMap<>(_shapes));
+      }
+   }
+
+   /**
+    * Stop the background explain thread
+    */
+   public synchronized void close() {
+      if (_executor != null) {
+         _executor.shutdownNow();
+         _executor = null;
+      }
+   }
+
+   @Override
+   public void commandStarted(final CommandStartedEvent event) {
+      String field = FILTERS.get(event.getCommandName());
+      BsonValue filter = null;
+
+      /*
+       * The command document is only valid during this call, keep a copy of
+       * the filter only
+       */
+      if (field != null) {
+         filter = event.getCommand().get(field);
+         _started.put(event.getRequestId(), new Started(event.getDatabaseName(),
+            event.getCommandName(), event.getCommand().get(event.getCommandName()),
+            filter == null ? new BsonDocument() : copyFilter(filter)));
+      }
+
+      return;
+   }
+
+   @Override
+   public void commandSucceeded(final CommandSucceededEvent event) {
+      Started started = _started.remove(event.getRequestId());
+
+      if (event.getElapsedTime(TimeUnit.NANOSECONDS) >= _thresholdNanos) {
+         this.log(started, event.getCommandName(), event.getElapsedTime(TimeUnit.MILLISECONDS),
+            getResultCount(event.getResponse()));
+      }
+
+      return;
+   }
+
+   @Override
+   public void commandFailed(final CommandFailedEvent event) {
+      Started started = _started.remove(event.getRequestId());
+
+      if (event.getElapsedTime(TimeUnit.NANOSECONDS) >= _thresholdNanos) {
+         this.log(started, event.getCommandName(), event.getElapsedTime(TimeUnit.MILLISECONDS), -1);
+      }
+
+      return;
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private void log(final Started started, final String command, final long millis, final int results) {
+      String shape = null;
+
+      if (started == null) {
+         _logger.log(Level.WARNING, "Slow operation: command={0}, duration={1}ms",
+            new Object[]{command, millis});
+         return;
+      }
+
+      shape = started.getShape();
+
+      _logger.log(Level.WARNING, "Slow operation: command={0}, namespace={1}.{2}, filter={3}, duration={4}ms, results={5}",
+         new Object[]{command, started._database, started.getCollection(), shape, millis, results});
+
+      if (_shapes.putIfAbsent(shape, false) == null && _explain && _client != null) {
+         this.explain(started, shape);
+      }
+
+      return;
+   }
+
+   /**
+    * Explain the command in the background, the values are needed so the
+    * original filter is used
+    */
+   private synchronized void explain(final Started started, final String shape) {
+      if (!"find".equals(started._command) && !"count".equals(started._command)
+         && !"aggregate".equals(started._command)) {
+         return;
+      }
+
+      if (_executor == null) {
+         _executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, CLASS);
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+
+      _executor.execute(() -> {
+         boolean collscan = false;
+         BsonDocument command = null;
+         Document explain = null;
+
+         try {
+            command = new BsonDocument(started._command, started._collection);
+            command.put(FILTERS.get(started._command), started._filter);
+            if ("aggregate".equals(started._command)) {
+               command.put("cursor", new BsonDocument());
+            }
+
+            explain = _client.getDatabase(started._database).runCommand(
+               new BsonDocument("explain", command).append("verbosity", new BsonString("queryPlanner")));
+
+            collscan = hasStage(BsonDocument.parse(explain.toJson()), COLLSCAN);
+            _shapes.put(shape, collscan);
+
+            _logger.log(collscan ? Level.WARNING : Level.INFO,
+               "Slow operation explained: filter={0}, collscan={1}", new Object[]{shape, collscan});
+         } catch (Exception ex) {
+            _logger.log(Level.WARNING, "Can not explain slow operation: " + shape + ": " + ex.getMessage());
+         }
+      });
+
+      return;
+   }
+
+   /**
+    * Number of documents returned: the cursor batch for find / aggregate /
+    * getMore or "n" for count, update and delete
+    */
+   private static int getResultCount(final BsonDocument response) {
+      BsonDocument cursor = null;
+
+      if (response == null) {
+         return -1;
+      }
+
+      if (response.isDocument("cursor")) {
+         cursor = response.getDocument("cursor");
+         if (cursor.isArray("firstBatch")) {
+            return cursor.getArray("firstBatch").size();
+         }
+         if (cursor.isArray("nextBatch")) {
+            return cursor.getArray("nextBatch").size();
+         }
+      }
+
+      if (response.isNumber("n")) {
+         return response.getNumber("n").intValue();
+      }
+
+      if (response.isArray("values")) {
+         return response.getArray("values").size();
+      }
+
+      return -1;
+   }
+
+   private static boolean hasStage(final BsonValue value, final String stage) {
+      if (value.isDocument()) {
+         for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+            if ("stage".equals(entry.getKey()) && entry.getValue().isString()
+               && stage.equals(entry.getValue().asString().getValue())) {
+               return true;
+            }
+            if (hasStage(entry.getValue(), stage)) {
+               return true;
+            }
+         }
+      } else if (value.isArray()) {
+         for (BsonValue element : value.asArray()) {
+            if (hasStage(element, stage)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Copy the value, replacing every scalar with "?" (keys are kept)
+    *
+    * @param value BsonValue
+    * @return BsonValue shape of the value
+    */
+   static BsonValue redact(final BsonValue value) {
+      BsonDocument doc = null;
+      BsonArray array = null;
+
+      if (value.isDocument()) {
+         doc = new BsonDocument();
+         for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+            doc.put(entry.getKey(), redact(entry.getValue()));
+         }
+         return doc;
+      }
+
+      if (value.isArray()) {
+         array = new BsonArray();
+         for (BsonValue element : value.asArray()) {
+            if (element.isDocument() || element.isArray()) {
+               array.add(redact(element));
+            }
+         }
+         return array.isEmpty() ? new BsonString(REDACTED) : array;
+      }
+
+      return new BsonString(REDACTED);
+   }
+
+   /**
+    * Copy the filter of a command. The statements of "update" and "delete"
+    * also have the update and its "data": only their query "q" is copied.
+    */
+   private static BsonValue copyFilter(final BsonValue filter) {
+      BsonArray statements = null;
+
+      if (!filter.isArray()) {
+         return copy(filter);
+      }
+
+      statements = new BsonArray();
+      for (BsonValue statement : filter.asArray()) {
+         if (statement.isDocument() && statement.asDocument().containsKey("q")) {
+            statements.add(new BsonDocument("q", copy(statement.asDocument().get("q"))));
+         } else {
+            statements.add(copy(statement)); // aggregate "pipeline" stage
+         }
+      }
+
+      return statements;
+   }
+
+   private static BsonValue copy(final BsonValue value) {
+      if (value.isDocument()) {
+         return value.asDocument().clone();
+      }
+      if (value.isArray()) {
+         return value.asArray().clone();
+      }
+      return value;
+   }
+
+   /**
+    * Started command: only the parts needed for the log and the explain
+    */
+   private static final class Started {
+
+      private final String _database;
+      private final String _command;
+      private final BsonValue _collection;
+      private final BsonValue _filter;
+
+      private Started(final String database, final String command,
+         final BsonValue collection, final BsonValue filter) {
+         _database = database;
+         _command = command;
+         _collection = collection == null ? new BsonString("") : copy(collection);
+         _filter = filter;
+      }
+
+      private String getCollection() {
+         return _collection.isString() ? _collection.asString().getValue() : _collection.toString();
+      }
+
+      private String getShape() {
+         BsonDocument shape = new BsonDocument(_command, new BsonString(_database + "." + this.getCollection()));
+
+         shape.put(FILTERS.get(_command), redact(_filter));
+
+         return shape.toJson();
+      }
+   }
+}
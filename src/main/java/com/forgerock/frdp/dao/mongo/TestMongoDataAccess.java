@@ -6,13 +6,24 @@
 package com.forgerock.frdp.dao.mongo;
 
 import com.forgerock.frdp.common.ConstantsIF;
+import com.forgerock.frdp.dao.DataAccessIF;
 import com.forgerock.frdp.dao.Operation;
 import com.forgerock.frdp.dao.OperationIF;
+import com.forgerock.frdp.utils.JSON;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import org.bson.Document;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 /**
+ * Runs a fixed sequence of create, read, replace, delete and search operations
+ * and checks the output state of each one. The same sequence is used as the
+ * conformance test for both engines, the first argument selects the engine:
+ * "mongo" (default) or "memory". The checks of a feature that the engine does
+ * not implement (see MemoryDataAccess.isSupported()) are skipped, the other
+ * checks expect the same state from both engines.
  *
  * @author Scott Fehrman, ForgeRock, Inc.
  */
@@ -21,9 +32,12 @@ public class TestMongoDataAccess {
    private static final String COLLECTION = "test";
 
    public static void main(String[] args) throws Exception {
+      int failures = 0;
       String uid = null;
-      MongoDataAccess dao = null;
+      DataAccessIF dao = null;
+      DataAccessIF other = null;
       Map<String, String> params = new HashMap<>();
+      Map<String, String> otherParams = null;
       OperationIF operInput = null;
       OperationIF operOutput = null;
       JSONObject jsonData = null;
@@ -31,6 +45,8 @@ public class TestMongoDataAccess {
       JSONObject jsonInput = null;
       JSONObject jsonOutput = null;
       JSONObject jsonInfo = null;
+      JSONArray jsonRemove = null;
+      JSONArray jsonArray = null;
 
       // setup
       params.put(MongoDataAccess.PARAM_HOST, "127.0.0.1");
@@ -38,9 +54,9 @@ public class TestMongoDataAccess {
       params.put(MongoDataAccess.PARAM_AUTHEN_USER, "testadmin");
       params.put(MongoDataAccess.PARAM_AUTHEN_PASSWORD, "password");
       params.put(MongoDataAccess.PARAM_AUTHEN_DATABASE, DATABASE);
+      params.put(MongoFactory.PARAM_ENGINE, args.length > 0 ? args[0] : MongoFactory.ENGINE_MONGO);
 
-      dao = new MongoDataAccess();
-      dao.setParams(params);
+      dao = MongoFactory.getInstance(params);
 
       jsonInfo = new JSONObject();
       jsonInfo.put("language", "java");
@@ -53,6 +69,7 @@ public class TestMongoDataAccess {
        * "uid": "..." }
        */
       operOutput = dao.execute(operInput); // bad create null test
+      failures += check(operOutput, "FAILED");
 
       // create: provided "uid" ------------------------------------
 
@@ -73,6 +90,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
       jsonOutput = operOutput.getJSON();
 
       System.out.println("====");
@@ -98,6 +116,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "ERROR");
       jsonOutput = operOutput.getJSON();
 
       System.out.println("====");
@@ -158,6 +177,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
       jsonOutput = operOutput.getJSON();
 
       uid = jsonOutput.get(ConstantsIF.UID).toString();
@@ -181,6 +201,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput); // bad read test
+      failures += check(operOutput, "NOTEXIST");
 
       jsonInput = new JSONObject();
       jsonInput.put(ConstantsIF.UID, uid);
@@ -191,6 +212,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -223,6 +245,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "NOTEXIST");
 
       jsonOutput = operOutput.getJSON();
 
@@ -241,6 +264,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -258,6 +282,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -266,6 +291,97 @@ public class TestMongoDataAccess {
       System.out.println("==== Read json:   " + jsonOutput.toString());
       System.out.println("====");
 
+      /*
+       * PATCH JSON structures: INPUT: { "uid": "...", "data": { "attr": "value",
+       * ... }, "remove": [ "attr", ... ] } OUTPUT: { "matched": 1, "modified": 1 }
+       */
+      // patch -------------------------------------------------------
+      jsonData = new JSONObject();
+      jsonData.put("status", "Patched");
+      jsonData.put("info.language", "java11");
+
+      jsonRemove = new JSONArray();
+      jsonRemove.add("comment");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "NotExistUid"); // bad patch test
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+      jsonInput.put(MongoDataAccess.REMOVE, jsonRemove);
+
+      operInput = new Operation(OperationIF.TYPE.REPLACE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setParam(MongoDataAccess.PARAM_OPERATION, MongoDataAccess.OPERATION_PATCH);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "NOTEXIST");
+
+      jsonInput.put(ConstantsIF.UID, uid);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      jsonOutput = operOutput.getJSON();
+
+      System.out.println("====");
+      System.out.println("==== Patch output: " + operOutput.toString());
+      System.out.println("==== Patch json:   " + jsonOutput.toString());
+      System.out.println("====");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, uid);
+
+      operInput = new Operation(OperationIF.TYPE.READ);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      jsonOutput = operOutput.getJSON();
+
+      System.out.println("====");
+      System.out.println("==== Read output: " + operOutput.toString());
+      System.out.println("==== Read json:   " + jsonOutput.toString());
+      System.out.println("====");
+
+      // replace: expected version (create, replace and patch make it 3)
+
+      jsonData = new JSONObject();
+      jsonData.put("firstname", "Jack");
+      jsonData.put("lastname", "Bauer");
+      jsonData.put("title", "Agent");
+      jsonData.put("organization", "CTU");
+      jsonData.put("info", jsonInfo);
+      jsonData.put("status", "Versioned");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, uid);
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+      jsonInput.put(MongoDataAccess.VERSION, 1L); // conflict test
+
+      operInput = new Operation(OperationIF.TYPE.REPLACE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "ERROR");
+
+      jsonInput.put(MongoDataAccess.VERSION, 3L);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      jsonOutput = operOutput.getJSON();
+
+      System.out.println("====");
+      System.out.println("==== Replace output: " + operOutput.toString());
+      System.out.println("==== Replace json:   " + jsonOutput.toString());
+      System.out.println("====");
+
       /*
        * DELETE JSON structures: INPUT: { "id": "..." } OUTPUT: { }
        */
@@ -279,6 +395,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonInput);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -308,6 +425,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonData);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -329,6 +447,7 @@ public class TestMongoDataAccess {
       operInput.setJSON(jsonData);
 
       operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
 
       jsonOutput = operOutput.getJSON();
 
@@ -337,8 +456,452 @@ public class TestMongoDataAccess {
       System.out.println("==== Search json:   " + jsonOutput.toString());
       System.out.println("====");
 
+      // aggregate: number of documents per firstname
+
+      jsonData = new JSONObject();
+      jsonData.put("_id", "$" + ConstantsIF.DATA + ".firstname");
+      jsonData.put("count", new JSONObject(Map.of("$sum", 1L)));
+
+      jsonArray = new JSONArray();
+      jsonArray.add(new JSONObject(Map.of("$group", jsonData)));
+      jsonArray.add(new JSONObject(Map.of("$sort", new JSONObject(Map.of("count", -1L)))));
+
+      jsonInput = new JSONObject();
+      jsonInput.put(MongoDataAccess.PIPELINE, jsonArray);
+
+      operInput = new Operation(OperationIF.TYPE.SEARCH);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setParam(MongoDataAccess.PARAM_OPERATION, MongoDataAccess.OPERATION_AGGREGATE);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      System.out.println("====");
+      System.out.println("==== Aggregate output: " + operOutput.toString());
+      System.out.println("==== Aggregate json:   " + operOutput.getJSON().toString());
+      System.out.println("====");
+
+      // distinct: firstname values
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.ATTRIBUTE, ConstantsIF.DATA + ".firstname");
+
+      operInput = new Operation(OperationIF.TYPE.SEARCH);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setParam(MongoDataAccess.PARAM_OPERATION, MongoDataAccess.OPERATION_DISTINCT);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      System.out.println("====");
+      System.out.println("==== Distinct output: " + operOutput.toString());
+      System.out.println("==== Distinct json:   " + operOutput.getJSON().toString());
+      System.out.println("====");
+
+      // aggregate: stages that write are rejected
+
+      jsonArray = new JSONArray();
+      jsonArray.add(new JSONObject(Map.of("$out", "copy")));
+
+      jsonInput = new JSONObject();
+      jsonInput.put(MongoDataAccess.PIPELINE, jsonArray);
+
+      operInput = new Operation(OperationIF.TYPE.SEARCH);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setParam(MongoDataAccess.PARAM_OPERATION, MongoDataAccess.OPERATION_AGGREGATE);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "FAILED");
+
+      // create: already expired, hidden from read, "uid" can be reused
+
+      jsonData = new JSONObject();
+      jsonData.put("category", "sso_session");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+      jsonInput.put(ConstantsIF.UID, "session");
+      jsonInput.put(MongoDataAccess.EXPIRES_AT, 1000L);
+
+      operInput = new Operation(OperationIF.TYPE.CREATE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "session");
+
+      operInput = new Operation(OperationIF.TYPE.READ);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "NOTEXIST");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+      jsonInput.put(ConstantsIF.UID, "session");
+      jsonInput.put(MongoDataAccess.TTL_SECONDS, 3600L);
+
+      operInput = new Operation(OperationIF.TYPE.CREATE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "session");
+
+      operInput = new Operation(OperationIF.TYPE.READ);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      System.out.println("====");
+      System.out.println("==== Expires read json: " + operOutput.getJSON().toString());
+      System.out.println("====");
+
+      operInput = new Operation(OperationIF.TYPE.DELETE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
+      // negative cache: a READ of a just created "uid" is not NOTEXIST
+
+      otherParams = new HashMap<>(params);
+      otherParams.put(MongoDataAccess.PARAM_NEGCACHE_ENABLED, "true");
+      other = getInstance(otherParams);
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "negcache");
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.READ, jsonInput));
+      failures += check(operOutput, "NOTEXIST");
+
+      jsonData = new JSONObject();
+      jsonData.put("category", "negcache");
+
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.CREATE, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "negcache");
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.READ, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.DELETE, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      other.close();
+
+      // search cache: a SEARCH after a REPLACE returns the new data
+
+      otherParams = new HashMap<>(params);
+      otherParams.put(MongoDataAccess.PARAM_SEARCH_CACHE_ENABLED, "true");
+      other = getInstance(otherParams);
+
+      jsonData = new JSONObject();
+      jsonData.put("category", "searchcache");
+      jsonData.put("status", "Created");
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "searchcache");
+      jsonInput.put(ConstantsIF.DATA, jsonData);
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.CREATE, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      jsonQuery = new JSONObject();
+      jsonQuery.put(ConstantsIF.OPERATOR, ConstantsIF.EQUAL);
+      jsonQuery.put(ConstantsIF.ATTRIBUTE, ConstantsIF.DATA + ".category");
+      jsonQuery.put(ConstantsIF.VALUE, "searchcache");
+
+      operInput = getOperation(OperationIF.TYPE.SEARCH, new JSONObject(Map.of(ConstantsIF.QUERY, jsonQuery)));
+
+      operOutput = other.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+      failures += check("cached search", "Created", getResultData(operOutput, "status"));
+
+      jsonData.put("status", "Replaced");
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.REPLACE, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      operOutput = other.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+      failures += check("search after replace", "Replaced", getResultData(operOutput, "status"));
+
+      operOutput = other.execute(getOperation(OperationIF.TYPE.DELETE, jsonInput));
+      failures += check(operOutput, "SUCCESS");
+
+      other.close();
+
+      // partitioned collection: CREATE, READ and SEARCH find the document
+
+      if (isSupported(dao, MongoDataAccess.PARAM_PARTITION_COUNT)) {
+         otherParams = new HashMap<>(params);
+         otherParams.put(MongoDataAccess.PARAM_PARTITION_COUNT, "3");
+         other = getInstance(otherParams);
+
+         jsonData = new JSONObject();
+         jsonData.put("category", "partitioned");
+
+         jsonInput = new JSONObject();
+         jsonInput.put(ConstantsIF.UID, "partitioned");
+         jsonInput.put(ConstantsIF.DATA, jsonData);
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.CREATE, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+
+         jsonInput = new JSONObject();
+         jsonInput.put(ConstantsIF.UID, "partitioned");
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.READ, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+         failures += check("partitioned read", "partitioned",
+            JSON.getObject(operOutput.getJSON(), ConstantsIF.DATA).get("category"));
+
+         jsonQuery = new JSONObject();
+         jsonQuery.put(ConstantsIF.OPERATOR, ConstantsIF.EQUAL);
+         jsonQuery.put(ConstantsIF.ATTRIBUTE, ConstantsIF.DATA + ".category");
+         jsonQuery.put(ConstantsIF.VALUE, "partitioned");
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.SEARCH,
+            new JSONObject(Map.of(ConstantsIF.QUERY, jsonQuery))));
+         failures += check(operOutput, "SUCCESS");
+         failures += check("partitioned search", "partitioned", getResultData(operOutput, "category"));
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.DELETE, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+
+         other.close();
+      } else {
+         System.out.println("==== Skipped: partitioned collection");
+      }
+
+      // spill: a "data" over the threshold (in UTF-8 bytes) is read back whole
+
+      if (isSupported(dao, MongoDataAccess.PARAM_SPILL_THRESHOLD)) {
+         otherParams = new HashMap<>(params);
+         otherParams.put(MongoDataAccess.PARAM_SPILL_THRESHOLD, "64");
+         other = getInstance(otherParams);
+
+         jsonData = new JSONObject();
+         jsonData.put("category", "spilled");
+         jsonData.put("note", "\u00e9".repeat(40)); // 40 chars, 80 bytes
+
+         jsonInput = new JSONObject();
+         jsonInput.put(ConstantsIF.UID, "spilled");
+         jsonInput.put(ConstantsIF.DATA, jsonData);
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.CREATE, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+
+         jsonInput = new JSONObject();
+         jsonInput.put(ConstantsIF.UID, "spilled");
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.READ, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+         failures += check("spilled read", jsonData.get("note"),
+            JSON.getObject(operOutput.getJSON(), ConstantsIF.DATA).get("note"));
+
+         jsonInput.put(ConstantsIF.DATA, new JSONObject(Map.of("status", "Patched")));
+
+         operInput = getOperation(OperationIF.TYPE.REPLACE, jsonInput);
+         operInput.setParam(MongoDataAccess.PARAM_OPERATION, MongoDataAccess.OPERATION_PATCH);
+
+         operOutput = other.execute(operInput); // a spilled "data" can not be patched
+         failures += check(operOutput, "ERROR");
+
+         jsonInput.remove(ConstantsIF.DATA);
+
+         operOutput = other.execute(getOperation(OperationIF.TYPE.DELETE, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+
+         other.close();
+      } else {
+         System.out.println("==== Skipped: spill");
+      }
+
+      // parallel search: a document with a "_id" that is not an ObjectId
+
+      if (isSupported(dao, MongoDataAccess.PARTITIONS)) {
+         jsonData = new JSONObject();
+         jsonData.put("category", "stringid");
+
+         ((MongoDataAccess) dao).getCollection(DATABASE, COLLECTION).insertOne(
+            new Document("_id", "stringid")
+               .append(ConstantsIF.UID, "stringid")
+               .append(ConstantsIF.DATA, Document.parse(jsonData.toString()))
+               .append(ConstantsIF.TIMESTAMPS, new Document(ConstantsIF.CREATED, new Date()))
+               .append(MongoDataAccess.VERSION, 1L));
+
+         jsonQuery = new JSONObject();
+         jsonQuery.put(ConstantsIF.OPERATOR, ConstantsIF.EQUAL);
+         jsonQuery.put(ConstantsIF.ATTRIBUTE, ConstantsIF.DATA + ".category");
+         jsonQuery.put(ConstantsIF.VALUE, "stringid");
+
+         jsonInput = new JSONObject();
+         jsonInput.put(ConstantsIF.QUERY, jsonQuery);
+         jsonInput.put(MongoDataAccess.PARTITIONS, 4L);
+
+         operOutput = dao.execute(getOperation(OperationIF.TYPE.SEARCH, jsonInput));
+         failures += check(operOutput, "SUCCESS");
+         failures += check("parallel search", "stringid", getResultData(operOutput, "category"));
+
+         operOutput = dao.execute(getOperation(OperationIF.TYPE.DELETE,
+            new JSONObject(Map.of(ConstantsIF.UID, "stringid"))));
+         failures += check(operOutput, "SUCCESS");
+      } else {
+         System.out.println("==== Skipped: parallel search");
+      }
+
+      // cleanup: remove the provided "uid" so the sequence can be repeated
+
+      jsonInput = new JSONObject();
+      jsonInput.put(ConstantsIF.UID, "jdoe");
+
+      operInput = new Operation(OperationIF.TYPE.DELETE);
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(jsonInput);
+
+      operOutput = dao.execute(operInput);
+      failures += check(operOutput, "SUCCESS");
+
       dao.close();
 
+      System.out.println("==== Failures: " + failures);
+
+      if (failures > 0) {
+         System.exit(1);
+      }
+
       return;
    }
+
+   /**
+    * Get a new instance of the engine in the params, MongoFactory only
+    * returns its singleton
+    *
+    * @param params Map of DAO params
+    * @return DataAccessIF new instance
+    */
+   private static DataAccessIF getInstance(final Map<String, String> params) {
+      DataAccessIF dao = null;
+
+      if (MongoFactory.ENGINE_MEMORY.equalsIgnoreCase(params.get(MongoFactory.PARAM_ENGINE))) {
+         dao = new MemoryDataAccess();
+      } else {
+         dao = new MongoDataAccess();
+      }
+      dao.setParams(params);
+
+      return dao;
+   }
+
+   /**
+    * Check if the engine implements a feature of MongoDataAccess, the checks
+    * of a feature it does not are skipped
+    *
+    * @param dao DataAccessIF engine
+    * @param feature String param, SEARCH attribute or query operator
+    * @return boolean true if the feature is checked
+    */
+   private static boolean isSupported(final DataAccessIF dao, final String feature) {
+      return !(dao instanceof MemoryDataAccess) || ((MemoryDataAccess) dao).isSupported(feature);
+   }
+
+   /**
+    * Get an operation on the test collection
+    *
+    * @param type OperationIF.TYPE operation type
+    * @param json JSONObject input
+    * @return OperationIF input data
+    */
+   private static OperationIF getOperation(final OperationIF.TYPE type, final JSONObject json) {
+      OperationIF operInput = new Operation(type);
+
+      operInput.setParam(MongoDataAccess.PARAM_DATABASE, DATABASE);
+      operInput.setParam(MongoDataAccess.PARAM_COLLECTION, COLLECTION);
+      operInput.setJSON(json);
+
+      return operInput;
+   }
+
+   /**
+    * Check the state of the output operation
+    *
+    * @param operOutput OperationIF output data
+    * @param expected String expected state
+    * @return int 0 if the state is the expected state, else 1
+    */
+   private static int check(final OperationIF operOutput, final String expected) {
+      String actual = String.valueOf(operOutput.getState());
+
+      if (expected.equals(actual)) {
+         return 0;
+      }
+
+      System.out.println("==== FAILED: " + operOutput.getType()
+         + ": expected state=" + expected + ", actual state=" + actual);
+
+      return 1;
+   }
+
+   /**
+    * Check a value of the output
+    *
+    * @param name String what is checked
+    * @param expected Object expected value
+    * @param actual Object value of the output
+    * @return int 0 if the values are equal, else 1
+    */
+   private static int check(final String name, final Object expected, final Object actual) {
+      if (expected.equals(actual)) {
+         return 0;
+      }
+
+      System.out.println("==== FAILED: " + name + ": expected=" + expected + ", actual=" + actual);
+
+      return 1;
+   }
+
+   /**
+    * Get an attribute of the "data" of the first SEARCH result
+    *
+    * @param operOutput OperationIF output data
+    * @param attribute String attribute name
+    * @return Object value, null if there are no results
+    */
+   private static Object getResultData(final OperationIF operOutput, final String attribute) {
+      JSONArray results = JSON.getArray(operOutput.getJSON(), ConstantsIF.RESULTS);
+
+      if (results == null || results.isEmpty()) {
+         return null;
+      }
+
+      return JSON.getObject((JSONObject) results.get(0), ConstantsIF.DATA).get(attribute);
+   }
 }
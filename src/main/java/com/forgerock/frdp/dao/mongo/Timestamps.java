@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.forgerock.frdp.common.ConstantsIF;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.json.simple.JSONObject;
+
+/**
+ * The "timestamps" block is stored as BSON dates. Older documents have String
+ * values, "yyyy-MM-dd'T'HH:mm:ss.SSSZ" in the server time zone. Output JSON
+ * always has String values, the format is selected with the
+ * "timestamps.format" param:
+ *
+ * <pre>
+ * legacy  2021-03-04T10:11:12.345-0600 (default, same as the String values)
+ * iso     2021-03-04T16:11:12.345Z     (ISO-8601 instant, UTC)
+ * </pre>
+ *
+ * The optional "expires" timestamp is set from the "expiresAt" (timestamp or
+ * milliseconds since the epoch) or "ttlSeconds" input attribute. It is covered
+ * by a TTL index so mongod removes expired documents, documents that have
+ * expired but have not been removed yet are hidden from READ and SEARCH.
+ *
+ * The formatters are java.time DateTimeFormatter objects, they are immutable
+ * and thread safe so they are shared by all instances.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+final class Timestamps {
+
+   static final String FORMAT_LEGACY = "legacy";
+   static final String FORMAT_ISO = "iso";
+   static final String ATTR_EXPIRES = ConstantsIF.TIMESTAMPS + "." + MongoDataAccess.EXPIRES;
+   private static final DateTimeFormatter LEGACY_PARSER
+      = DateTimeFormatter.ofPattern(MongoDataAccess.TZ_FORMAT);
+   private static final DateTimeFormatter LEGACY
+      = LEGACY_PARSER.withZone(ZoneId.systemDefault());
+
+   private Timestamps() {
+   }
+
+   /**
+    * Check the value of the "timestamps.format" param
+    *
+    * @param format String param value, null or empty is "legacy"
+    * @return boolean true for the "legacy" format
+    * @throws Exception unsupported format
+    */
+   static boolean isLegacy(final String format) throws Exception {
+      if (format == null || format.isEmpty() || FORMAT_LEGACY.equalsIgnoreCase(format)) {
+         return true;
+      }
+      if (FORMAT_ISO.equalsIgnoreCase(format)) {
+         return false;
+      }
+      throw new Exception("Unsupported timestamps format '" + format + "'");
+   }
+
+   /**
+    * Format the date
+    *
+    * @param date Date
+    * @param legacy boolean true for the "legacy" format, false for ISO-8601
+    * @return String formatted date
+    */
+   static String format(final Date date, final boolean legacy) {
+      return legacy ? LEGACY.format(date.toInstant()) : DateTimeFormatter.ISO_INSTANT.format(date.toInstant());
+   }
+
+   /**
+    * Parse a String timestamp, "legacy" or ISO-8601 instant
+    *
+    * @param value String timestamp
+    * @return Date, null if the value can not be parsed
+    */
+   static Date parse(final String value) {
+      try {
+         return Date.from(Instant.from(LEGACY_PARSER.parse(value)));
+      } catch (DateTimeParseException ex) {
+         try {
+            return Date.from(Instant.parse(value));
+         } catch (DateTimeParseException ex2) {
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Create the output JSON for the "timestamps" document, Date values are
+    * formatted, String values (not yet migrated) are copied
+    *
+    * @param doc Document "timestamps"
+    * @param legacy boolean true for the "legacy" format
+    * @return JSONObject
+    */
+   static JSONObject toJSON(final Document doc, final boolean legacy) {
+      Date date = null;
+      JSONObject json = new JSONObject();
+
+      for (Map.Entry<String, Object> entry : doc.entrySet()) {
+         if (entry.getValue() instanceof Date) {
+            json.put(entry.getKey(), format((Date) entry.getValue(), legacy));
+         } else if (entry.getValue() instanceof String && !legacy) {
+            date = parse((String) entry.getValue());
+            json.put(entry.getKey(), date == null ? entry.getValue() : format(date, false));
+         } else {
+            json.put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().toString());
+         }
+      }
+
+      return json;
+   }
+
+   /**
+    * Get the expiry from the input JSON: "expiresAt" String timestamp or
+    * milliseconds since the epoch, or "ttlSeconds" from now
+    *
+    * <pre>
+    * { "uid": "...", "data": { ... }, "ttlSeconds": 3600 }
+    * { "uid": "...", "data": { ... }, "expiresAt": "2021-03-04T16:11:12.345Z" }
+    * </pre>
+    *
+    * @param json JSONObject input
+    * @return Date expiry, null if the input does not have one
+    * @throws Exception invalid value or both attributes are set
+    */
+   static Date getExpires(final JSONObject json) throws Exception {
+      Object expiresAt = null;
+      Object ttlSeconds = null;
+      Date date = null;
+
+      if (json == null) {
+         return null;
+      }
+
+      expiresAt = json.get(MongoDataAccess.EXPIRES_AT);
+      ttlSeconds = json.get(MongoDataAccess.TTL_SECONDS);
+
+      if (expiresAt != null && ttlSeconds != null) {
+         throw new Exception("Only one of '" + MongoDataAccess.EXPIRES_AT
+            + "' and '" + MongoDataAccess.TTL_SECONDS + "' can be set");
+      }
+
+      if (expiresAt instanceof Number) {
+         date = new Date(((Number) expiresAt).longValue());
+      } else if (expiresAt instanceof String) {
+         date = parse((String) expiresAt);
+         if (date == null) {
+            throw new Exception("Can not parse '" + MongoDataAccess.EXPIRES_AT + "': " + expiresAt);
+         }
+      } else if (expiresAt != null) {
+         throw new Exception("Attribute '" + MongoDataAccess.EXPIRES_AT + "' is not a String or a Number");
+      }
+
+      if (ttlSeconds instanceof Number && ((Number) ttlSeconds).longValue() > 0) {
+         date = new Date(System.currentTimeMillis() + ((Number) ttlSeconds).longValue() * 1000L);
+      } else if (ttlSeconds != null) {
+         throw new Exception("Attribute '" + MongoDataAccess.TTL_SECONDS + "' is not a positive Number");
+      }
+
+      return date;
+   }
+
+   /**
+    * Check if the document has expired (and has not been removed yet)
+    *
+    * @param doc Document, can be null
+    * @return boolean true if "timestamps.expires" is in the past
+    */
+   static boolean isExpired(final Document doc) {
+      Object tstamps = doc == null ? null : doc.get(ConstantsIF.TIMESTAMPS);
+      Object expires = null;
+
+      if (tstamps instanceof Document) {
+         expires = ((Document) tstamps).get(MongoDataAccess.EXPIRES);
+      }
+
+      return expires instanceof Date && !((Date) expires).after(new Date());
+   }
+
+   /**
+    * Filter for the documents that have not expired, includes documents
+    * without "timestamps.expires"
+    *
+    * @return Bson filter
+    */
+   static Bson getNotExpiredFilter() {
+      return Filters.not(Filters.lte(ATTR_EXPIRES, new Date()));
+   }
+
+   /**
+    * Filter for the document with the "uid" if it has expired
+    *
+    * @param uid String document identifier
+    * @return Bson filter
+    */
+   static Bson getExpiredFilter(final String uid) {
+      return Filters.and(Filters.eq(ConstantsIF.UID, uid), Filters.lte(ATTR_EXPIRES, new Date()));
+   }
+
+   /**
+    * Get the filter and update that convert the String timestamps of a
+    * document to dates. The filter includes the current String values so a
+    * concurrent write is never overwritten.
+    *
+    * @param uid String document identifier
+    * @param attr String name of the "timestamps" attribute
+    * @param doc Document "timestamps"
+    * @return Bson[] filter and update, null if there is nothing to migrate
+    */
+   static Bson[] getMigration(final String uid, final String attr, final Document doc) {
+      Date date = null;
+      List<Bson> filters = new LinkedList<>();
+      List<Bson> updates = new LinkedList<>();
+
+      for (Map.Entry<String, Object> entry : doc.entrySet()) {
+         if (entry.getValue() instanceof String) {
+            date = parse((String) entry.getValue());
+            if (date != null) {
+               filters.add(Filters.eq(attr + "." + entry.getKey(), entry.getValue()));
+               updates.add(Updates.set(attr + "." + entry.getKey(), date));
+            }
+         }
+      }
+
+      if (updates.isEmpty()) {
+         return null;
+      }
+
+      filters.add(0, Filters.eq(ConstantsIF.UID, uid));
+
+      return new Bson[]{Filters.and(filters), Updates.combine(updates)};
+   }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2018-2021, ForgeRock, Inc., All rights reserved
+ * Use subject to license terms.
+ */
+package com.forgerock.frdp.dao.mongo;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+
+/**
+ * Bytes sent and received, a CommandListener registered on the MongoClient by
+ * MongoDataAccess.init() when metrics are enabled.
+ *
+ * The size of every command and reply is counted by command name
+ * (getBytesSent() / getBytesReceived()) and for the Scope of the calling
+ * thread. The synchronous driver calls the listener on the thread that runs
+ * the command, so MongoDataAccess.execute() uses begin() and end() to get the
+ * bytes of one operation and records them in its OperationMetrics. The
+ * commands that an operation runs on other threads (partition searches,
+ * ParallelScan) are counted with bind(), a buffered CREATE gets its share of
+ * the batch from GroupCommit.
+ *
+ * The sizes are read from the BSON of the command and the reply (the first 4
+ * bytes of a raw document), a decoded document is measured from its values:
+ * nothing is encoded again.
+ *
+ * The sizes are BSON message sizes before wire compression, the driver does
+ * not report compressed sizes. Compare them with the "network" section of
+ * serverStatus (MongoDataAccess.getNetworkStatus()) to measure the bandwidth
+ * saved by compression.
+ *
+ * @author Scott Fehrman, ForgeRock, Inc.
+ */
+public class WireMetrics implements CommandListener {
+
+   private final Map<String, LongAdder> _sent = new ConcurrentHashMap<>();
+   private final Map<String, LongAdder> _received = new ConcurrentHashMap<>();
+   private final ThreadLocal<Scope> _current = new ThreadLocal<>();
+
+   /**
+    * Start counting the bytes of the calling thread
+    */
+   void begin() {
+      _current.set(new Scope());
+   }
+
+   /**
+    * Stop counting the bytes of the calling thread
+    *
+    * @return long[] bytes sent [0] and received [1] since begin()
+    */
+   long[] end() {
+      Scope scope = _current.get();
+
+      _current.remove();
+
+      return scope == null ? new long[2] : new long[]{scope._sent.sum(), scope._received.sum()};
+   }
+
+   /**
+    * Get the Scope of the calling thread
+    *
+    * @return Scope, null if the thread is not counted
+    */
+   Scope getScope() {
+      return _current.get();
+   }
+
+   /**
+    * Count the commands of a task in the Scope of the calling thread, when it
+    * runs on another thread
+    *
+    * @param task Supplier
+    * @return Supplier that runs the task in the Scope
+    */
+   <T> Supplier<T> bind(final Supplier<T> task) {
+      final Scope scope = _current.get();
+
+      if (scope == null) {
+         return task;
+      }
+
+      return () -> {
+         Scope previous = _current.get();
+
+         _current.set(scope);
+         try {
+            return task.get();
+         } finally {
+            if (previous == null) {
+               _current.remove();
+            } else {
+               _current.set(previous);
+            }
+         }
+      };
+   }
+
+   /**
+    * Get the bytes sent, by command name
+    *
+    * @return Map of command name to bytes
+    */
+   public Map<String, Long> getBytesSent() {
+      return getTotals(_sent);
+   }
+
+   /**
+    * Get the bytes received, by command name
+    *
+    * @return Map of command name to bytes
+    */
+   public Map<String, Long> getBytesReceived() {
+      return getTotals(_received);
+   }
+
+   @Override
+   public void commandStarted(final CommandStartedEvent event) {
+      this.add(_sent, event.getCommandName(), getSize(event.getCommand()), 0);
+   }
+
+   @Override
+   public void commandSucceeded(final CommandSucceededEvent event) {
+      this.add(_received, event.getCommandName(), getSize(event.getResponse()), 1);
+   }
+
+   @Override
+   public void commandFailed(final CommandFailedEvent event) {
+      // no response document
+   }
+
+   /*
+    * =============== PRIVATE METHODS ===============
+    */
+   private void add(final Map<String, LongAdder> totals, final String command, final long size, final int index) {
+      Scope scope = _current.get();
+
+      totals.computeIfAbsent(command, k -> new LongAdder()).add(size);
+
+      if (scope != null) {
+         scope.add(index, size);
+      }
+
+      return;
+   }
+
+   private static Map<String, Long> getTotals(final Map<String, LongAdder> totals) {
+      Map<String, Long> map = new ConcurrentHashMap<>();
+
+      for (Map.Entry<String, LongAdder> entry : totals.entrySet()) {
+         map.put(entry.getKey(), entry.getValue().sum());
+      }
+
+      return Collections.unmodifiableMap(map);
+   }
+
+   /**
+    * BSON size of the document. The driver passes raw documents (commands,
+    * replies and the documents of an insert / update / delete batch): their
+    * size is the first int32. The command of a batch is decoded, with the
+    * batch as an array of raw documents, it is measured from its values.
+    */
+   private static long getSize(final BsonDocument doc) {
+      long size = 5; // int32 length, terminating 0
+
+      if (doc == null) {
+         return 0;
+      }
+
+      try (BsonReader reader = doc.asBsonReader()) {
+         if (reader instanceof BsonBinaryReader) {
+            return ((BsonBinaryReader) reader).getBsonInput().readInt32();
+         }
+      }
+
+      for (Map.Entry<String, BsonValue> entry : doc.entrySet()) {
+         size += 2 + getLength(entry.getKey()) + getSize(entry.getValue());
+      }
+
+      return size;
+   }
+
+   private static long getSize(final BsonArray array) {
+      long size = 5;
+
+      for (int i = 0; i < array.size(); i++) {
+         size += 2 + Integer.toString(i).length() + getSize(array.get(i));
+      }
+
+      return size;
+   }
+
+   /**
+    * BSON size of a value, without its type and name
+    */
+   private static long getSize(final BsonValue value) {
+      switch (value.getBsonType()) {
+         case DOCUMENT:
+            return getSize(value.asDocument());
+         case ARRAY:
+            return getSize(value.asArray());
+         case STRING:
+            return 5 + getLength(value.asString().getValue());
+         case SYMBOL:
+            return 5 + getLength(value.asSymbol().getSymbol());
+         case JAVASCRIPT:
+            return 5 + getLength(value.asJavaScript().getCode());
+         case JAVASCRIPT_WITH_SCOPE:
+            return 9 + getLength(value.asJavaScriptWithScope().getCode())
+               + getSize(value.asJavaScriptWithScope().getScope());
+         case BINARY:
+            return 5 + value.asBinary().getData().length + (value.asBinary().getType() == 2 ? 4 : 0);
+         case OBJECT_ID:
+            return 12;
+         case DB_POINTER:
+            return 17 + getLength(value.asDBPointer().getNamespace());
+         case REGULAR_EXPRESSION:
+            return 2 + getLength(value.asRegularExpression().getPattern())
+               + getLength(value.asRegularExpression().getOptions());
+         case BOOLEAN:
+            return 1;
+         case INT32:
+            return 4;
+         case DECIMAL128:
+            return 16;
+         case NULL:
+         case UNDEFINED:
+         case MIN_KEY:
+         case MAX_KEY:
+            return 0;
+         default:
+            return 8; // INT64, DOUBLE, DATE_TIME, TIMESTAMP
+      }
+   }
+
+   /**
+    * UTF-8 length of the String, without encoding it
+    */
+   static long getLength(final String value) {
+      long length = 0;
+      char c = 0;
+
+      for (int i = 0; i < value.length(); i++) {
+         c = value.charAt(i);
+         if (c < 0x80) {
+            length += 1;
+         } else if (c < 0x800) {
+            length += 2;
+         } else if (Character.isHighSurrogate(c)) {
+            length += 4;
+            i++;
+         } else {
+            length += 3;
+         }
+      }
+
+      return length;
+   }
+
+   /**
+    * Bytes of the commands of one operation, the commands can run on several
+    * threads
+    */
+   static final class Scope {
+
+      private final LongAdder _sent = new LongAdder();
+      private final LongAdder _received = new LongAdder();
+
+      /**
+       * Add bytes to the Scope
+       *
+       * @param index int 0 for sent, 1 for received
+       * @param size long bytes
+       */
+      void add(final int index, final long size) {
+         (index == 0 ? _sent : _received).add(size);
+      }
+
+      long getSent() {
+         return _sent.sum();
+      }
+
+      long getReceived() {
+         return _received.sum();
+      }
+   }
+}
@@ -14,6 +14,6 @@ CP="${CP}:${M2}/org/mongodb/bson/3.7.1/bson-3.7.1.jar"
 CP="${CP}:${M2}/org/mongodb/mongodb-driver-core/3.7.1/mongodb-driver-core-3.7.1.jar"
 CP="${CP}:${M2}/org/mongodb/mongo-java-driver/3.4.1/mongo-java-driver-3.4.1.jar"
 
-java -cp "${CP}" com.forgerock.frdp.dao.mongo.TestMongoDataAccess
+java -cp "${CP}" com.forgerock.frdp.dao.mongo.TestMongoDataAccess "$@"
 
 exit
\ No newline at end of file